@@ -3,13 +3,11 @@ package com.mixpanel.android.mpmetrics;
 import static com.mixpanel.android.util.MPConstants.URL.DEFAULT_SERVER_HOST;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
-import android.util.DisplayMetrics;
 
 import com.mixpanel.android.eventbridge.MixpanelEventBridge;
 import com.mixpanel.android.util.Base64Coder;
@@ -23,11 +21,20 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import javax.net.ssl.SSLSocketFactory;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -56,13 +63,24 @@ import org.json.JSONObject;
         }
     }
 
+    /**
+     * Returns a deep copy of a prepared event's properties for event bridge collectors, which run
+     * outside the library and might change what they're given. Only made when a collector is
+     * listening, so events tracked without one are never copied.
+     */
+    /* package */ static JSONObject listenerPropertiesOf(JSONObject event) throws JSONException {
+        return new JSONObject(event.getJSONObject("properties").toString());
+    }
+
     /** Do not call directly. You should call AnalyticsMessages.getInstance() */
     /* package */ AnalyticsMessages(final Context context, MPConfig config) {
         mContext = context;
         mConfig = config;
         mInstanceName = config.getInstanceName();
         mWorker = createWorker();
-        getPoster().checkIsServerBlocked();
+        // Runs before any flush the worker is asked for, and keeps its DNS lookup off the caller
+        final RemoteService poster = getPoster();
+        mWorker.runMessage(Message.obtain(null, poster::checkIsServerBlocked));
     }
 
     protected Worker createWorker() {
@@ -99,6 +117,9 @@ import org.json.JSONObject;
     }
 
     public void eventsMessage(final EventDescription eventDescription) {
+        if (mWorker.ingest(eventDescription, eventDescription.isAutomatic())) {
+            return;
+        }
         final Message m = Message.obtain();
         m.what = ENQUEUE_EVENTS;
         m.obj = eventDescription;
@@ -107,6 +128,9 @@ import org.json.JSONObject;
 
     // Must be thread safe.
     public void peopleMessage(final PeopleDescription peopleDescription) {
+        if (mWorker.ingest(peopleDescription, false)) {
+            return;
+        }
         final Message m = Message.obtain();
         m.what = ENQUEUE_PEOPLE;
         m.obj = peopleDescription;
@@ -116,6 +140,9 @@ import org.json.JSONObject;
 
     // Must be thread safe.
     public void groupMessage(final GroupDescription groupDescription) {
+        if (mWorker.ingest(groupDescription, false)) {
+            return;
+        }
         final Message m = Message.obtain();
         m.what = ENQUEUE_GROUP;
         m.obj = groupDescription;
@@ -205,9 +232,10 @@ import org.json.JSONObject;
     }
 
     private volatile HttpService mHttpService;
+    private volatile RemoteService mPoster;
 
     protected RemoteService getPoster() {
-        if (mHttpService == null) {
+        if (mPoster == null) {
             String serverHost = extractHostFromUrl(mConfig.getEventsEndpoint());
             mHttpService =
                     new HttpService(
@@ -215,12 +243,18 @@ import org.json.JSONObject;
                             mNetworkErrorListener,
                             mConfig.getBackupHost(),
                             serverHost);
+            if (mConfig.getScheduledRetries()) {
+                // The worker schedules retries itself, see scheduleFlushRetry
+                mHttpService.setMaxAttempts(1);
+            }
+            mHttpService.setHostHealthRouting(mConfig.getHostHealthRouting());
+            mPoster = mConfig.makeRemoteService(mHttpService);
         } else {
             // Update backup host and listener in case they changed at runtime
             mHttpService.setBackupHost(mConfig.getBackupHost());
             mHttpService.setNetworkErrorListener(mNetworkErrorListener);
         }
-        return mHttpService;
+        return mPoster;
     }
 
     /**
@@ -238,6 +272,13 @@ import org.json.JSONObject;
 
     ////////////////////////////////////////////////////
 
+    /**
+     * A tracked event as built by MixpanelAPI. The properties are built for this event from a copy
+     * of the caller's properties taken at track time. The worker thread and the feature flags
+     * first-time event check then share them without copying again, so they must not be modified
+     * once the description has been handed to {@link #eventsMessage(EventDescription)}. Event
+     * bridge collectors never see them: they get a copy of the prepared event's properties.
+     */
     static class EventDescription extends MixpanelMessageDescription {
 
         public EventDescription(
@@ -256,12 +297,51 @@ import org.json.JSONObject;
                 boolean isAutomatic,
                 JSONObject sessionMetadata,
                 Set<String> excludeProperties) {
+            this(eventName, properties, token, isAutomatic, sessionMetadata, excludeProperties, null);
+        }
+
+        /**
+         * @param typedProperties properties from an {@link EventBuilder}, written over
+         *     properties when the event is stored, or null
+         */
+        public EventDescription(
+                String eventName,
+                JSONObject properties,
+                String token,
+                boolean isAutomatic,
+                JSONObject sessionMetadata,
+                Set<String> excludeProperties,
+                TypedProperties typedProperties) {
             super(token, properties);
             mEventName = eventName;
             mIsAutomatic = isAutomatic;
             mSessionMetadata = sessionMetadata;
             mExcludeProperties =
                     excludeProperties == null ? Collections.emptySet() : excludeProperties;
+            mTypedProperties = typedProperties;
+            mSnapshot = null;
+        }
+
+        /**
+         * An event whose properties are only merged from snapshot when first needed, normally on
+         * the worker thread.
+         */
+        /* package */ EventDescription(
+                String eventName,
+                EventSnapshot snapshot,
+                String token,
+                boolean isAutomatic,
+                JSONObject sessionMetadata,
+                Set<String> excludeProperties,
+                TypedProperties typedProperties) {
+            super(token, null);
+            mEventName = eventName;
+            mIsAutomatic = isAutomatic;
+            mSessionMetadata = sessionMetadata;
+            mExcludeProperties =
+                    excludeProperties == null ? Collections.emptySet() : excludeProperties;
+            mTypedProperties = typedProperties;
+            mSnapshot = snapshot;
         }
 
         public String getEventName() {
@@ -269,7 +349,34 @@ import org.json.JSONObject;
         }
 
         public JSONObject getProperties() {
-            return getMessage();
+            if (mSnapshot == null) {
+                return getMessage();
+            }
+            try {
+                return materializeProperties();
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Exception building properties for event " + mEventName, e);
+                return null;
+            }
+        }
+
+        /* package */ boolean isDeferred() {
+            return mSnapshot != null;
+        }
+
+        /**
+         * Same as {@link #getProperties()}, but reports a failure to merge deferred properties.
+         */
+        /* package */ JSONObject materializeProperties() throws JSONException {
+            if (mSnapshot == null) {
+                return getMessage();
+            }
+            synchronized (this) {
+                if (mMaterialized == null) {
+                    mMaterialized = mSnapshot.materialize();
+                }
+                return mMaterialized;
+            }
         }
 
         public JSONObject getSessionMetadata() {
@@ -284,10 +391,35 @@ import org.json.JSONObject;
             return mExcludeProperties;
         }
 
+        public TypedProperties getTypedProperties() {
+            return mTypedProperties;
+        }
+
+        /**
+         * Returns a new object with every property of the event, including typed ones.
+         */
+        public JSONObject getAllProperties() throws JSONException {
+            final JSONObject properties = getProperties();
+            final JSONObject ret = new JSONObject();
+            if (properties != null) {
+                for (final Iterator<String> keys = properties.keys(); keys.hasNext(); ) {
+                    final String key = keys.next();
+                    ret.put(key, properties.get(key));
+                }
+            }
+            if (mTypedProperties != null) {
+                mTypedProperties.writeTo(ret);
+            }
+            return ret;
+        }
+
         private final String mEventName;
         private final JSONObject mSessionMetadata;
         private final boolean mIsAutomatic;
         private final Set<String> mExcludeProperties;
+        private final TypedProperties mTypedProperties;
+        private final EventSnapshot mSnapshot;
+        private JSONObject mMaterialized;
     }
 
     static class PeopleDescription extends MixpanelMessageDescription {
@@ -419,6 +551,174 @@ import org.json.JSONObject;
         private final FirstTimeEventListener mFirstTimeEventListener;
     }
 
+    /**
+     * A batch read from the database and ready to post: either Base64 encoded form parameters,
+     * or a FlushBatch streamed into the request body.
+     */
+    private static class PreparedBatch {
+        PreparedBatch(String lastId, int queueCount, String rawMessage, FlushBatch body) {
+            mLastId = lastId;
+            mQueueCount = queueCount;
+            mRawMessage = rawMessage;
+            mBody = body;
+            Map<String, Object> params = null;
+            OutOfMemoryError encodingError = null;
+            if (rawMessage != null) {
+                try {
+                    params = new HashMap<String, Object>();
+                    params.put("data", Base64Coder.encodeString(rawMessage));
+                    if (MPConfig.DEBUG) {
+                        params.put("verbose", "1");
+                    }
+                } catch (final OutOfMemoryError e) {
+                    // Reported when the batch is posted, so it's handled in order with the others
+                    params = null;
+                    encodingError = e;
+                }
+            }
+            mParams = params;
+            mEncodingError = encodingError;
+        }
+
+        public String getLastId() {
+            return mLastId;
+        }
+
+        public int getQueueCount() {
+            return mQueueCount;
+        }
+
+        public String getRawMessage() {
+            return mRawMessage;
+        }
+
+        public Map<String, Object> getParams() {
+            if (mEncodingError != null) {
+                throw mEncodingError;
+            }
+            return mParams;
+        }
+
+        public FlushBatch getBody() {
+            return mBody;
+        }
+
+        private final String mLastId;
+        private final int mQueueCount;
+        private final String mRawMessage;
+        private final FlushBatch mBody;
+        private final Map<String, Object> mParams;
+        private final OutOfMemoryError mEncodingError;
+    }
+
+    /**
+     * A pipelined flush of one token's tables, which are sent in turn. Only used on the worker.
+     */
+    private static class FlushJob {
+        FlushJob(String token, MPDbAdapter.Table[] tables, String[] urls) {
+            mToken = token;
+            mTables = tables;
+            mUrls = urls;
+            mTableIndex = -1;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        /**
+         * Moves on to the next table.
+         *
+         * @return false once every table has been sent
+         */
+        public boolean nextTable() {
+            if (mCancelled || mTableIndex + 1 >= mTables.length) {
+                return false;
+            }
+            mTableIndex++;
+            return true;
+        }
+
+        public MPDbAdapter.Table getTable() {
+            return mTables[mTableIndex];
+        }
+
+        public String getUrl() {
+            return mUrls[mTableIndex];
+        }
+
+        // The last ID of a batch that has been delivered but not yet deleted
+        public String getAcknowledgedId() {
+            return mAcknowledgedId;
+        }
+
+        public void setAcknowledgedId(String acknowledgedId) {
+            mAcknowledgedId = acknowledgedId;
+        }
+
+        // The batch read while the current one is in flight
+        public void setNext(PreparedBatch next) {
+            mNext = mCancelled ? null : next;
+        }
+
+        public PreparedBatch takeNext() {
+            final PreparedBatch next = mNext;
+            mNext = null;
+            return next;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            mNext = null;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private final String mToken;
+        private final MPDbAdapter.Table[] mTables;
+        private final String[] mUrls;
+        private int mTableIndex;
+        private String mAcknowledgedId;
+        private PreparedBatch mNext;
+        private boolean mCancelled;
+    }
+
+    /**
+     * The outcome of posting a batch, handed from the flush executor back to the worker.
+     */
+    private static class BatchCompletion {
+        BatchCompletion(
+                FlushJob job, PreparedBatch batch, RemoteService.RequestResult result, Throwable error) {
+            mJob = job;
+            mBatch = batch;
+            mResult = result;
+            mError = error;
+        }
+
+        public FlushJob getJob() {
+            return mJob;
+        }
+
+        public PreparedBatch getBatch() {
+            return mBatch;
+        }
+
+        public RemoteService.RequestResult getResult() {
+            return mResult;
+        }
+
+        public Throwable getError() {
+            return mError;
+        }
+
+        private final FlushJob mJob;
+        private final PreparedBatch mBatch;
+        private final RemoteService.RequestResult mResult;
+        private final Throwable mError;
+    }
+
     // Sends a message if and only if we are running with Mixpanel Message log enabled.
     // Will be called from the Mixpanel thread.
     private void logAboutMessageToMixpanel(String message) {
@@ -434,6 +734,15 @@ import org.json.JSONObject;
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
     class Worker {
         public Worker() {
+            final int ingestionQueueCapacity = mConfig.getIngestionQueueCapacity();
+            if (ingestionQueueCapacity > 0) {
+                mIngestionQueue = new IngestionQueue(ingestionQueueCapacity);
+                mIngestionQueueFullPolicy =
+                        IngestionQueue.FullPolicy.fromConfig(mConfig.getIngestionQueueFullPolicy());
+            } else {
+                mIngestionQueue = null;
+                mIngestionQueueFullPolicy = null;
+            }
             mHandler = restartWorkerThread();
         }
 
@@ -454,6 +763,73 @@ import org.json.JSONObject;
             }
         }
 
+        /**
+         * Hands an events, people or group description to the worker through the ingestion
+         * queue, if one is configured. Must be thread safe.
+         *
+         * @return false if there is no ingestion queue and the caller should send a Message
+         *     instead. Returns true if the description was queued or dropped by the full policy.
+         */
+        public boolean ingest(MixpanelMessageDescription description, boolean isAutomatic) {
+            final IngestionQueue queue = mIngestionQueue;
+            if (queue == null) {
+                return false;
+            }
+
+            if (isAutomatic
+                    && mIngestionQueueFullPolicy == IngestionQueue.FullPolicy.DROP_AUTOMATIC_FIRST
+                    && queue.size() >= queue.capacity() - queue.capacity() / 4) {
+                dropIngested("Ingestion queue nearly full, dropping automatic event");
+                return true;
+            }
+
+            long giveUpAt = 0;
+            while (!queue.offer(description)) {
+                if (mIngestionQueueFullPolicy == IngestionQueue.FullPolicy.DROP_NEWEST) {
+                    dropIngested("Ingestion queue full, dropping message");
+                    return true;
+                }
+                if (isDead() || isWorkerThread()) {
+                    // Nothing will ever make room for us
+                    MPLog.w(LOGTAG, "Ingestion queue full and cannot be drained, dropping message");
+                    dropIngested("Ingestion queue cannot be drained");
+                    return true;
+                }
+                // The caller may be the UI thread, and a flush may hold the worker for a while
+                final long now = System.nanoTime();
+                if (giveUpAt == 0) {
+                    giveUpAt = now + INGESTION_QUEUE_FULL_MAX_WAIT_NANOS;
+                } else if (now - giveUpAt >= 0) {
+                    dropIngested("Ingestion queue still full after waiting, dropping message");
+                    return true;
+                }
+                scheduleDrain();
+                LockSupport.parkNanos(INGESTION_QUEUE_FULL_PARK_NANOS);
+            }
+            scheduleDrain();
+            return true;
+        }
+
+        private void dropIngested(String reason) {
+            final long dropped = mIngestionDrops.incrementAndGet();
+            logAboutMessageToMixpanel(reason + " (" + dropped + " dropped so far)");
+        }
+
+        // At most one drain message is pending at a time, rather than one message per description
+        private void scheduleDrain() {
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                final Message m = Message.obtain();
+                m.what = DRAIN_INGESTION_QUEUE;
+                runMessage(m);
+            }
+        }
+
+        private boolean isWorkerThread() {
+            synchronized (mHandlerLock) {
+                return mHandler != null && mHandler.getLooper() == Looper.myLooper();
+            }
+        }
+
         // NOTE that the returned worker will run FOREVER, unless you send a hard kill
         // (which you really shouldn't)
         protected Handler restartWorkerThread() {
@@ -468,7 +844,7 @@ import org.json.JSONObject;
             public AnalyticsMessageHandler(Looper looper) {
                 super(looper);
                 mDbAdapter = null;
-                mSystemInformation = SystemInformation.getInstance(mContext);
+                mDefaultEventProperties = DefaultEventProperties.getInstance(mContext);
                 mFlushInterval = mConfig.getFlushInterval();
             }
 
@@ -476,141 +852,32 @@ import org.json.JSONObject;
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(
-                            System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(
-                            System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    if (mIdleMaintenance) {
+                        mMaintenance =
+                                new DatabaseMaintenance(
+                                        System.currentTimeMillis() - mConfig.getDataExpiration());
+                        scheduleMaintenance();
+                    } else {
+                        mDbAdapter.cleanupEvents(
+                                System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
+                        mDbAdapter.cleanupEvents(
+                                System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    }
                 }
 
                 try {
-                    int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
-                    String token = null;
-
-                    if (msg.what == ENQUEUE_PEOPLE) {
-                        final PeopleDescription message = (PeopleDescription) msg.obj;
-                        final MPDbAdapter.Table peopleTable =
-                                message.isAnonymous()
-                                        ? MPDbAdapter.Table.ANONYMOUS_PEOPLE
-                                        : MPDbAdapter.Table.PEOPLE;
-
-                        logAboutMessageToMixpanel("Queuing people record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
-                        token = message.getToken();
-                        int numRowsTable = mDbAdapter.addJSON(message.getMessage(), token, peopleTable);
-                        returnCode = message.isAnonymous() ? 0 : numRowsTable;
-                    } else if (msg.what == ENQUEUE_GROUP) {
-                        final GroupDescription message = (GroupDescription) msg.obj;
-
-                        logAboutMessageToMixpanel("Queuing group record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
-                        token = message.getToken();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.GROUPS);
-                    } else if (msg.what == ENQUEUE_EVENTS) {
-                        final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            token = eventDescription.getToken();
-                            returnCode = insertEventToDb(eventDescription);
-                            notifyEventBridgeListeners(eventDescription);
-                        } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
-                        }
-                    } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
-                        final PushAnonymousPeopleDescription pushAnonymousPeopleDescription =
-                                (PushAnonymousPeopleDescription) msg.obj;
-                        final String distinctId = pushAnonymousPeopleDescription.getDistinctId();
-                        token = pushAnonymousPeopleDescription.getToken();
-                        returnCode = mDbAdapter.pushAnonymousUpdatesToPeopleDb(token, distinctId);
-                    } else if (msg.what == CLEAR_ANONYMOUS_UPDATES) {
-                        final MixpanelDescription mixpanelDescription = (MixpanelDescription) msg.obj;
-                        token = mixpanelDescription.getToken();
-                        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
-                    } else if (msg.what == REWRITE_EVENT_PROPERTIES) {
-                        final UpdateEventsPropertiesDescription description =
-                                (UpdateEventsPropertiesDescription) msg.obj;
-                        int updatedEvents =
-                                mDbAdapter.rewriteEventDataWithProperties(
-                                        description.getProperties(), description.getToken());
-                        MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
-                    } else if (msg.what == FLUSH_QUEUE) {
-                        logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
-                        updateFlushFrequency();
-                        token = (String) msg.obj;
-                        sendAllData(mDbAdapter, token);
-                    } else if (msg.what == EMPTY_QUEUES) {
-                        final MixpanelDescription message = (MixpanelDescription) msg.obj;
-                        token = message.getToken();
-                        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, token);
-                        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.PEOPLE, token);
-                        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.GROUPS, token);
-                        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
-                    } else if (msg.what == KILL_WORKER) {
-                        MPLog.w(
-                                LOGTAG,
-                                "Worker received a hard kill. Dumping all events and force-killing. Thread id "
-                                        + Thread.currentThread().getId());
-                        synchronized (mHandlerLock) {
-                            mDbAdapter.deleteDB();
-                            mHandler = null;
-                            Looper.myLooper().quit();
-                        }
-                    } else if (msg.what == REMOVE_RESIDUAL_IMAGE_FILES) {
-                        final File file = (File) msg.obj;
-                        LegacyVersionUtils.removeLegacyResidualImageFiles(file);
-                    } else if (msg.what == CHECK_FIRST_LAUNCH) {
-                        final FirstLaunchDescription desc = (FirstLaunchDescription) msg.obj;
-                        final EventDescription openEvent = desc.getFirstOpenEvent();
-
-                        token = desc.getToken();
-                        final PersistentIdentity persistentIdentity = desc.getPersistentIdentity();
-                        boolean dbExistedBeforeInit = !mDbAdapter.isNewDatabase();
-                        if (persistentIdentity.isFirstLaunch(dbExistedBeforeInit, token)) {
-                            try {
-                                returnCode = insertEventToDb(openEvent);
-                                // Check first-time event targeting for the FIRST_OPEN event
-                                FirstTimeEventListener listener = desc.getFirstTimeEventListener();
-                                if (listener != null) {
-                                    listener.onEventTracked(
-                                            openEvent.getEventName(),
-                                            openEvent.getProperties());
-                                }
-                                notifyEventBridgeListeners(openEvent);
-                            } catch (final JSONException e) {
-                                MPLog.e(LOGTAG, "Exception tracking event " + openEvent.getEventName(), e);
-                            }
-                            persistentIdentity.setHasLaunched(token);
-                        }
+                    if (msg.what == DRAIN_INGESTION_QUEUE) {
+                        drainIngestionQueue();
+                    } else if (msg.what == RUN_DATABASE_MAINTENANCE) {
+                        runMaintenanceChunk();
+                    } else if (msg.what == CLOSE_IDLE_DATABASE) {
+                        closeIdleDatabase();
+                        return;
                     } else {
-                        MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: " + msg);
+                        processMessage(msg.what, msg.obj);
                     }
-
-                    ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit()
-                            || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR)
-                            && mFailedRetries <= 0
-                            && token != null) {
-                        logAboutMessageToMixpanel(
-                                "Flushing queue due to bulk upload limit ("
-                                        + returnCode
-                                        + ") for project "
-                                        + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token);
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMixpanel(
-                                "Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = token;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
+                    if (msg.what != KILL_WORKER) {
+                        scheduleIdleDatabaseClose();
                     }
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
@@ -626,6 +893,306 @@ import org.json.JSONObject;
                 }
             } // handleMessage
 
+            // Maintenance only runs once nothing else is waiting, one chunk per idle period
+            private void scheduleMaintenance() {
+                Looper.myQueue()
+                        .addIdleHandler(
+                                () -> {
+                                    sendEmptyMessage(RUN_DATABASE_MAINTENANCE);
+                                    return false;
+                                });
+            }
+
+            private void runMaintenanceChunk() {
+                if (mMaintenance != null && mMaintenance.runChunk(mDbAdapter)) {
+                    scheduleMaintenance();
+                } else {
+                    mMaintenance = null;
+                }
+            }
+
+            private void scheduleIdleDatabaseClose() {
+                if (mKeepDatabaseOpen && mDatabaseIdleTimeout > 0 && !mIdleCloseScheduled) {
+                    mIdleCloseScheduled = true;
+                    sendEmptyMessageDelayed(CLOSE_IDLE_DATABASE, mDatabaseIdleTimeout);
+                }
+            }
+
+            private void closeIdleDatabase() {
+                mIdleCloseScheduled = false;
+                final long idleTime = System.currentTimeMillis() - mDbAdapter.getLastUsedTime();
+                if (idleTime >= mDatabaseIdleTimeout) {
+                    logAboutMessageToMixpanel("Closing idle database connection");
+                    mDbAdapter.close();
+                } else {
+                    // Used since this was scheduled, check again once it could have gone idle
+                    mIdleCloseScheduled = true;
+                    sendEmptyMessageDelayed(CLOSE_IDLE_DATABASE, mDatabaseIdleTimeout - idleTime);
+                }
+            }
+
+            private void drainIngestionQueue() {
+                // Clear the flag before draining, so descriptions offered while we drain
+                // schedule another pass rather than waiting in the queue.
+                mDrainScheduled.set(false);
+                final IngestionQueue queue = mIngestionQueue;
+                // Bound each pass so other queued messages (flushes in particular) still get a turn
+                for (int drained = 0; drained < queue.capacity(); drained++) {
+                    final Object description = queue.poll();
+                    if (description == null) {
+                        break;
+                    }
+                    processMessage(whatForDescription(description), description);
+                }
+                if (queue.size() > 0) {
+                    scheduleDrain();
+                }
+                commitPendingInserts();
+            }
+
+            private int whatForDescription(Object description) {
+                if (description instanceof EventDescription) {
+                    return ENQUEUE_EVENTS;
+                } else if (description instanceof PeopleDescription) {
+                    return ENQUEUE_PEOPLE;
+                } else {
+                    return ENQUEUE_GROUP;
+                }
+            }
+
+            private void processMessage(int what, Object obj) {
+                if (mGroupCommit) {
+                    if (what == ENQUEUE_EVENTS || what == ENQUEUE_PEOPLE || what == ENQUEUE_GROUP) {
+                        addPendingInsert(what, obj);
+                        return;
+                    }
+                    // Anything else may read or delete what's queued, so write it first
+                    commitPendingInserts();
+                    if (what == COMMIT_PENDING_INSERTS) {
+                        return;
+                    }
+                }
+
+                int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
+                String token = null;
+
+                if (what == ENQUEUE_PEOPLE) {
+                    final PeopleDescription message = (PeopleDescription) obj;
+                    final MPDbAdapter.Table peopleTable =
+                            message.isAnonymous()
+                                    ? MPDbAdapter.Table.ANONYMOUS_PEOPLE
+                                    : MPDbAdapter.Table.PEOPLE;
+
+                    logAboutMessageToMixpanel("Queuing people record for sending later");
+                    logAboutMessageToMixpanel("    " + message.toString());
+                    token = message.getToken();
+                    int numRowsTable = mDbAdapter.addJSON(message.getMessage(), token, peopleTable);
+                    returnCode = message.isAnonymous() ? 0 : numRowsTable;
+                } else if (what == ENQUEUE_GROUP) {
+                    final GroupDescription message = (GroupDescription) obj;
+
+                    logAboutMessageToMixpanel("Queuing group record for sending later");
+                    logAboutMessageToMixpanel("    " + message.toString());
+                    token = message.getToken();
+                    returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.GROUPS);
+                } else if (what == ENQUEUE_EVENTS) {
+                    final EventDescription eventDescription = (EventDescription) obj;
+                    try {
+                        token = eventDescription.getToken();
+                        // Built once; the event bridge gets a copy of its properties
+                        final JSONObject event = prepareEventObject(eventDescription);
+                        returnCode = insertEventToDb(event, token);
+                        notifyEventBridgeListeners(eventDescription.getEventName(), event);
+                    } catch (final JSONException e) {
+                        MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                    }
+                } else if (what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
+                    final PushAnonymousPeopleDescription pushAnonymousPeopleDescription =
+                            (PushAnonymousPeopleDescription) obj;
+                    final String distinctId = pushAnonymousPeopleDescription.getDistinctId();
+                    token = pushAnonymousPeopleDescription.getToken();
+                    returnCode = mDbAdapter.pushAnonymousUpdatesToPeopleDb(token, distinctId);
+                } else if (what == CLEAR_ANONYMOUS_UPDATES) {
+                    final MixpanelDescription mixpanelDescription = (MixpanelDescription) obj;
+                    token = mixpanelDescription.getToken();
+                    mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
+                } else if (what == REWRITE_EVENT_PROPERTIES) {
+                    final UpdateEventsPropertiesDescription description =
+                            (UpdateEventsPropertiesDescription) obj;
+                    int updatedEvents =
+                            mDbAdapter.rewriteEventDataWithProperties(
+                                    description.getProperties(), description.getToken());
+                    MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
+                } else if (what == FLUSH_QUEUE) {
+                    logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
+                    updateFlushFrequency();
+                    token = (String) obj;
+                    sendAllData(mDbAdapter, token);
+                } else if (what == FLUSH_BATCH_COMPLETE) {
+                    onBatchComplete((BatchCompletion) obj);
+                } else if (what == EMPTY_QUEUES) {
+                    final MixpanelDescription message = (MixpanelDescription) obj;
+                    token = message.getToken();
+                    cancelPipelinedFlush(token);
+                    mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, token);
+                    mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.PEOPLE, token);
+                    mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.GROUPS, token);
+                    mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
+                } else if (what == KILL_WORKER) {
+                    MPLog.w(
+                            LOGTAG,
+                            "Worker received a hard kill. Dumping all events and force-killing. Thread id "
+                                    + Thread.currentThread().getId());
+                    synchronized (mHandlerLock) {
+                        mDbAdapter.deleteDB();
+                        mHandler = null;
+                        Looper.myLooper().quit();
+                    }
+                    for (final FlushJob job : mFlushJobs.values()) {
+                        job.cancel();
+                    }
+                    mFlushJobs.clear();
+                    if (mFlushExecutor != null) {
+                        mFlushExecutor.shutdownNow();
+                    }
+                } else if (what == REMOVE_RESIDUAL_IMAGE_FILES) {
+                    final File file = (File) obj;
+                    LegacyVersionUtils.removeLegacyResidualImageFiles(file);
+                } else if (what == CHECK_FIRST_LAUNCH) {
+                    final FirstLaunchDescription desc = (FirstLaunchDescription) obj;
+                    final EventDescription openEvent = desc.getFirstOpenEvent();
+
+                    token = desc.getToken();
+                    final PersistentIdentity persistentIdentity = desc.getPersistentIdentity();
+                    boolean dbExistedBeforeInit = !mDbAdapter.isNewDatabase();
+                    if (persistentIdentity.isFirstLaunch(dbExistedBeforeInit, token)) {
+                        try {
+                            final JSONObject event = prepareEventObject(openEvent);
+                            returnCode = insertEventToDb(event, token);
+                            // Check first-time event targeting for the FIRST_OPEN event, against
+                            // the prepared properties: the check only reads them
+                            FirstTimeEventListener listener = desc.getFirstTimeEventListener();
+                            if (listener != null) {
+                                listener.onEventTracked(
+                                        openEvent.getEventName(),
+                                        event.getJSONObject("properties"));
+                            }
+                            notifyEventBridgeListeners(openEvent.getEventName(), event);
+                        } catch (final JSONException e) {
+                            MPLog.e(LOGTAG, "Exception tracking event " + openEvent.getEventName(), e);
+                        }
+                        persistentIdentity.setHasLaunched(token);
+                    }
+                } else {
+                    MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: " + what);
+                }
+
+                ///////////////////////////
+                scheduleFlushIfNeeded(returnCode, token);
+            }
+
+            private void scheduleFlushIfNeeded(int returnCode, String token) {
+                if ((returnCode >= mConfig.getBulkUploadLimit()
+                        || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR)
+                        && mFailedRetries <= 0
+                        && token != null) {
+                    logAboutMessageToMixpanel(
+                            "Flushing queue due to bulk upload limit ("
+                                    + returnCode
+                                    + ") for project "
+                                    + token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token);
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    logAboutMessageToMixpanel(
+                            "Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
+                    if (mFlushInterval >= 0) {
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = token;
+                        flushMessage.arg1 = 1;
+                        sendMessageDelayed(flushMessage, mFlushInterval);
+                    }
+                }
+            }
+
+            // Group commit: queue the record to be written with the others that are
+            // waiting, in a single transaction.
+            private void addPendingInsert(int what, Object obj) {
+                if (what == ENQUEUE_PEOPLE) {
+                    final PeopleDescription message = (PeopleDescription) obj;
+                    logAboutMessageToMixpanel("Queuing people record for sending later");
+                    mPendingInserts.add(new MPDbAdapter.PendingInsert(
+                            message.getMessage(),
+                            message.getToken(),
+                            message.isAnonymous()
+                                    ? MPDbAdapter.Table.ANONYMOUS_PEOPLE
+                                    : MPDbAdapter.Table.PEOPLE));
+                } else if (what == ENQUEUE_GROUP) {
+                    final GroupDescription message = (GroupDescription) obj;
+                    logAboutMessageToMixpanel("Queuing group record for sending later");
+                    mPendingInserts.add(new MPDbAdapter.PendingInsert(
+                            message.getMessage(), message.getToken(), MPDbAdapter.Table.GROUPS));
+                } else {
+                    final EventDescription eventDescription = (EventDescription) obj;
+                    try {
+                        final JSONObject event = prepareEventObject(eventDescription);
+                        logAboutMessageToMixpanel("Queuing event for sending later");
+                        mPendingInserts.add(new MPDbAdapter.PendingInsert(
+                                event, eventDescription.getToken(), MPDbAdapter.Table.EVENTS));
+                        notifyEventBridgeListeners(eventDescription.getEventName(), event);
+                    } catch (final JSONException e) {
+                        MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                        return;
+                    }
+                }
+
+                if (mPendingInserts.size() >= GROUP_COMMIT_MAX_INSERTS) {
+                    commitPendingInserts();
+                } else if (mPendingInserts.size() == 1) {
+                    // Goes behind every enqueue message already waiting, so they all
+                    // land in the same transaction.
+                    final Message commitMessage = Message.obtain();
+                    commitMessage.what = COMMIT_PENDING_INSERTS;
+                    sendMessage(commitMessage);
+                }
+            }
+
+            private void commitPendingInserts() {
+                if (mPendingInserts.isEmpty()) {
+                    return;
+                }
+                final List<MPDbAdapter.PendingInsert> inserts = new ArrayList<>(mPendingInserts);
+                mPendingInserts.clear();
+
+                logAboutMessageToMixpanel("Writing " + inserts.size() + " queued records in one transaction");
+                final int[] counts = mDbAdapter.addJSONs(inserts);
+
+                // The deepest queue for each token decides whether it gets flushed,
+                // the same decision addJSON's return value drives for a single record.
+                final Map<String, Integer> depthByToken = new LinkedHashMap<>();
+                for (int i = 0; i < counts.length; i++) {
+                    final MPDbAdapter.PendingInsert insert = inserts.get(i);
+                    final int depth =
+                            insert.getTable() == MPDbAdapter.Table.ANONYMOUS_PEOPLE ? 0 : counts[i];
+                    final Integer previous = depthByToken.get(insert.getToken());
+                    if (previous == null
+                            || depth == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR
+                            || (previous != MPDbAdapter.DB_OUT_OF_MEMORY_ERROR && depth > previous)) {
+                        depthByToken.put(insert.getToken(), depth);
+                    }
+                }
+                for (final Map.Entry<String, Integer> entry : depthByToken.entrySet()) {
+                    scheduleFlushIfNeeded(entry.getValue(), entry.getKey());
+                }
+            }
+
             protected long getTrackEngageRetryAfter() {
                 return mTrackEngageRetryAfter;
             }
@@ -638,6 +1205,11 @@ import org.json.JSONObject;
                     return;
                 }
 
+                if (mConfig.getPipelinedFlush()) {
+                    startPipelinedFlush(token);
+                    return;
+                }
+
                 sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint());
                 sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint());
                 sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint());
@@ -646,151 +1218,268 @@ import org.json.JSONObject;
             private void sendData(
                     MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url) {
                 final RemoteService poster = getPoster();
-                String[] eventsData = dbAdapter.generateDataString(table, token);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
-                }
-
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
-
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final Map<String, Object> params = new HashMap<String, Object>();
-                    params.put("data", encodedData);
-                    if (MPConfig.DEBUG) {
-                        params.put("verbose", "1");
-                    }
-
-                    boolean deleteEvents = true;
-                    RemoteService.RequestResult result;
+                PreparedBatch batch = prepareBatch(dbAdapter, table, token, null);
+                while (batch != null) {
+                    RemoteService.RequestResult result = null;
+                    Throwable error = null;
                     try {
-                        final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        result =
-                                poster.performRequest(
-                                        url, mConfig.getProxyServerInteractor(), params, null, null, socketFactory);
-                        byte[] response = result.getResponse();
-                        String actualUrl = result.getRequestUrl(); // Get the actual URL that succeeded
-
-                        if (null == response) {
-                            deleteEvents = false;
-                            logAboutMessageToMixpanel(
-                                    "Response was null, unexpected failure posting to " + actualUrl + ".");
-                        } else {
-                            deleteEvents =
-                                    true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
-                            if (mFailedRetries > 0) {
-                                mFailedRetries = 0;
-                                removeMessages(FLUSH_QUEUE, token);
-                            }
-
-                            logAboutMessageToMixpanel("Successfully posted to " + actualUrl + ": \n" + rawMessage);
-                            logAboutMessageToMixpanel("Response was " + parsedResponse);
-                        }
-                    } catch (final OutOfMemoryError e) {
-                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                    } catch (final MalformedURLException e) {
-                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                    } catch (final RemoteService.ServiceUnavailableException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                        mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
-                    } catch (final IOException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
+                        result = postBatch(poster, url, batch);
+                    } catch (final OutOfMemoryError | IOException | RemoteService.ServiceUnavailableException e) {
+                        error = e;
                     }
 
-                    if (deleteEvents) {
+                    if (handleBatchResult(url, token, batch, result, error)) {
                         logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token);
+                        dbAdapter.cleanupEvents(batch.getLastId(), table, token);
                     } else {
-                        removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter =
-                                Math.max((long) Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter =
-                                Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMixpanel(
-                                "Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                        scheduleFlushRetry(token);
                         break;
                     }
 
-                    eventsData = dbAdapter.generateDataString(table, token);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
+                    batch = prepareBatch(dbAdapter, table, token, null);
+                }
+            }
+
+            /**
+             * Starts sending the token's events, people and group updates without waiting for
+             * the network. Requests run on the flush executor, and each result comes back to the
+             * worker as a FLUSH_BATCH_COMPLETE message, so enqueues are never stuck behind a slow
+             * request.
+             *
+             * <p>Batches are sent one at a time, in order. While a batch is on the network the
+             * worker deletes the batch acknowledged before it and reads the next one. A batch is
+             * only sent once the one before it has been acknowledged, and only deleted
+             * afterwards, so delivery stays at-least-once and in order.
+             */
+            private void startPipelinedFlush(String token) {
+                if (mFlushJobs.containsKey(token)) {
+                    // The flush in progress keeps reading until the queues are empty
+                    return;
+                }
+                final FlushJob job = new FlushJob(
+                        token,
+                        new MPDbAdapter.Table[] {
+                                MPDbAdapter.Table.EVENTS, MPDbAdapter.Table.PEOPLE, MPDbAdapter.Table.GROUPS
+                        },
+                        new String[] {
+                                mConfig.getEventsEndpoint(), mConfig.getPeopleEndpoint(), mConfig.getGroupsEndpoint()
+                        });
+                mFlushJobs.put(token, job);
+                sendNextTable(job);
+            }
+
+            private void sendNextTable(FlushJob job) {
+                while (job.nextTable()) {
+                    final PreparedBatch batch = prepareBatch(mDbAdapter, job.getTable(), job.getToken(), null);
+                    if (batch != null) {
+                        dispatchBatch(job, batch);
+                        return;
                     }
                 }
+                mFlushJobs.remove(job.getToken());
             }
 
-            private JSONObject getDefaultEventProperties() throws JSONException {
-                final JSONObject ret = new JSONObject();
+            private void dispatchBatch(final FlushJob job, final PreparedBatch batch) {
+                final RemoteService poster = getPoster();
+                final String url = job.getUrl();
+                getFlushExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        RemoteService.RequestResult result = null;
+                        Throwable error = null;
+                        try {
+                            result = postBatch(poster, url, batch);
+                        } catch (final Throwable e) {
+                            error = e;
+                        }
+                        sendMessage(obtainMessage(
+                                FLUSH_BATCH_COMPLETE, new BatchCompletion(job, batch, result, error)));
+                    }
+                });
 
-                ret.put("mp_lib", "android");
-                ret.put("$lib_version", MPConfig.VERSION);
+                deleteAcknowledged(job);
+                job.setNext(prepareBatch(mDbAdapter, job.getTable(), job.getToken(), batch.getLastId()));
+            }
 
-                // For querying together with data from other libraries
-                ret.put("$os", "Android");
-                ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+            private void onBatchComplete(BatchCompletion completion) {
+                final FlushJob job = completion.getJob();
+                if (job.isCancelled()) {
+                    return;
+                }
 
-                ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
-                ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
-                ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+                final PreparedBatch next = job.takeNext();
+                if (handleBatchResult(
+                        job.getUrl(), job.getToken(), completion.getBatch(), completion.getResult(), completion.getError())) {
+                    logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
+                    job.setAcknowledgedId(completion.getBatch().getLastId());
+                    if (next != null) {
+                        dispatchBatch(job, next);
+                        return;
+                    }
+                    deleteAcknowledged(job);
+                } else {
+                    // The prepared batch is dropped unsent, and read again on the retry
+                    scheduleFlushRetry(job.getToken());
+                }
+                sendNextTable(job);
+            }
 
-                final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
-                ret.put("$screen_dpi", displayMetrics.densityDpi);
-                ret.put("$screen_height", displayMetrics.heightPixels);
-                ret.put("$screen_width", displayMetrics.widthPixels);
+            private void deleteAcknowledged(FlushJob job) {
+                final String acknowledgedId = job.getAcknowledgedId();
+                if (acknowledgedId != null) {
+                    mDbAdapter.cleanupEvents(acknowledgedId, job.getTable(), job.getToken());
+                    job.setAcknowledgedId(null);
+                }
+            }
 
-                final String applicationVersionName = mSystemInformation.getAppVersionName();
-                if (null != applicationVersionName) {
-                    ret.put("$app_version", applicationVersionName);
-                    ret.put("$app_version_string", applicationVersionName);
+            // Stops a flush in progress from sending anything else, e.g. after its queues were emptied
+            private void cancelPipelinedFlush(String token) {
+                final FlushJob job = mFlushJobs.remove(token);
+                if (job != null) {
+                    job.cancel();
                 }
+            }
 
-                final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
-                if (null != applicationVersionCode) {
-                    final String applicationVersion = String.valueOf(applicationVersionCode);
-                    ret.put("$app_release", applicationVersion);
-                    ret.put("$app_build_number", applicationVersion);
+            private PreparedBatch prepareBatch(
+                    MPDbAdapter dbAdapter, MPDbAdapter.Table table, String token, String afterId) {
+                final PreparedBatch batch;
+                if (mConfig.getStreamingFlush()) {
+                    final FlushBatch flushBatch = dbAdapter.generateFlushBatch(table, token, afterId);
+                    if (flushBatch == null) {
+                        return null;
+                    }
+                    batch = new PreparedBatch(flushBatch.getLastId(), flushBatch.getQueueCount(), null, flushBatch);
+                } else {
+                    final String[] eventsData = afterId == null
+                            ? dbAdapter.generateDataString(table, token)
+                            : dbAdapter.generateDataString(table, token, afterId);
+                    if (eventsData == null) {
+                        return null;
+                    }
+                    batch = new PreparedBatch(eventsData[0], Integer.valueOf(eventsData[2]), eventsData[1], null);
                 }
+                return batch.getQueueCount() > 0 ? batch : null;
+            }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC) ret.put("$has_nfc", hasNFC.booleanValue());
+            // May run on the flush executor, so only touches the batch and the poster
+            private RemoteService.RequestResult postBatch(
+                    RemoteService poster, String url, PreparedBatch batch)
+                    throws RemoteService.ServiceUnavailableException, IOException {
+                final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
+                if (batch.getBody() != null) {
+                    return poster.performStreamingRequest(
+                            url, mConfig.getProxyServerInteractor(), FORM_HEADERS, batch.getBody(), socketFactory);
+                }
+                return poster.performRequest(
+                        url, mConfig.getProxyServerInteractor(), batch.getParams(), null, null, socketFactory);
+            }
 
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony) ret.put("$has_telephone", hasTelephony.booleanValue());
+            /**
+             * @return true if the batch is finished with and should be deleted, either because it
+             *     was delivered or because it never can be. False if it should be retried later.
+             */
+            private boolean handleBatchResult(
+                    String url,
+                    String token,
+                    PreparedBatch batch,
+                    RemoteService.RequestResult result,
+                    Throwable error) {
+                if (error instanceof OutOfMemoryError) {
+                    MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", error);
+                    return true;
+                } else if (error instanceof MalformedURLException) {
+                    MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", error);
+                    return true;
+                } else if (error instanceof RemoteService.ServiceUnavailableException) {
+                    logAboutMessageToMixpanel("Cannot post message to " + url + ".", error);
+                    mTrackEngageRetryAfter =
+                            ((RemoteService.ServiceUnavailableException) error).getRetryAfter() * 1000;
+                    return false;
+                } else if (error instanceof IOException) {
+                    logAboutMessageToMixpanel("Cannot post message to " + url + ".", error);
+                    return false;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error instanceof Error) {
+                    throw (Error) error;
+                } else if (error != null) {
+                    throw new RuntimeException(error);
+                }
 
-                final String carrier = mSystemInformation.getCurrentNetworkOperator();
-                if (null != carrier && !carrier.trim().isEmpty()) ret.put("$carrier", carrier);
+                byte[] response = result.getResponse();
+                String actualUrl = result.getRequestUrl(); // Get the actual URL that succeeded
 
-                final Boolean isWifi = mSystemInformation.isWifiConnected();
-                if (null != isWifi) ret.put("$wifi", isWifi.booleanValue());
+                if (null == response) {
+                    logAboutMessageToMixpanel(
+                            "Response was null, unexpected failure posting to " + actualUrl + ".");
+                    return false;
+                }
 
-                final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
-                if (isBluetoothEnabled != null) ret.put("$bluetooth_enabled", isBluetoothEnabled);
+                // Delete events on any successful post, regardless of 1 or 0 response
+                String parsedResponse;
+                try {
+                    parsedResponse = new String(response, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException("UTF not supported on this platform?", e);
+                }
+                if (mFailedRetries > 0) {
+                    mFailedRetries = 0;
+                    removeMessages(FLUSH_QUEUE, token);
+                }
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null) ret.put("$bluetooth_version", bluetoothVersion);
+                if (batch.getBody() != null) {
+                    logAboutMessageToMixpanel("Successfully posted " + batch.getBody().getRecordCount()
+                            + " records (" + batch.getBody().getPayloadBytes() + " bytes) to " + actualUrl);
+                } else {
+                    logAboutMessageToMixpanel("Successfully posted to " + actualUrl + ": \n" + batch.getRawMessage());
+                }
+                logAboutMessageToMixpanel("Response was " + parsedResponse);
+                return true;
+            }
 
-                return ret;
+            private void scheduleFlushRetry(String token) {
+                removeMessages(FLUSH_QUEUE, token);
+                final long delay;
+                if (null != mRetryBackoff) {
+                    // mTrackEngageRetryAfter only carries the server's Retry-After here, so it
+                    // must not outlive this retry
+                    delay = mRetryBackoff.delayMillis(mFailedRetries, mTrackEngageRetryAfter);
+                    mTrackEngageRetryAfter = 0;
+                } else {
+                    mTrackEngageRetryAfter =
+                            Math.max((long) Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
+                    mTrackEngageRetryAfter =
+                            Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
+                    delay = mTrackEngageRetryAfter;
+                }
+                final Message flushMessage = Message.obtain();
+                flushMessage.what = FLUSH_QUEUE;
+                flushMessage.obj = token;
+                sendMessageDelayed(flushMessage, delay);
+                mFailedRetries++;
+                logAboutMessageToMixpanel("Retrying this batch of events in " + delay + " ms");
+            }
+
+            private ExecutorService getFlushExecutor() {
+                if (mFlushExecutor == null) {
+                    mFlushExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "com.mixpanel.android.AnalyticsFlush");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                return mFlushExecutor;
             }
 
             private JSONObject prepareEventObject(EventDescription eventDescription)
                     throws JSONException {
                 final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject sendProperties = getDefaultEventProperties();
+                final JSONObject eventProperties = eventDescription.materializeProperties();
+                final JSONObject sendProperties = new JSONObject();
+                mDefaultEventProperties.writeTo(sendProperties);
                 sendProperties.put("token", eventDescription.getToken());
                 if (eventProperties != null) {
                     for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext(); ) {
@@ -798,6 +1487,10 @@ import org.json.JSONObject;
                         sendProperties.put(key, eventProperties.get(key));
                     }
                 }
+                final TypedProperties typedProperties = eventDescription.getTypedProperties();
+                if (typedProperties != null) {
+                    typedProperties.writeTo(sendProperties);
+                }
                 applyExcludeProperties(sendProperties, eventDescription.getExcludeProperties());
                 eventObj.put("event", eventDescription.getEventName());
                 eventObj.put("properties", sendProperties);
@@ -805,26 +1498,36 @@ import org.json.JSONObject;
                 return eventObj;
             }
 
-            private int insertEventToDb(EventDescription eventDescription) throws JSONException {
-                final JSONObject message = prepareEventObject(eventDescription);
+            private int insertEventToDb(JSONObject event, String token) {
                 logAboutMessageToMixpanel("Queuing event for sending later");
-                logAboutMessageToMixpanel("    " + message);
-                return mDbAdapter.addJSON(message, eventDescription.getToken(), MPDbAdapter.Table.EVENTS);
+                if (MPLog.getLevel() <= MPLog.VERBOSE) {
+                    logAboutMessageToMixpanel("    " + event);
+                }
+                return mDbAdapter.addJSON(event, token, MPDbAdapter.Table.EVENTS);
             }
 
-            private void notifyEventBridgeListeners(EventDescription eventDescription) {
-                try {
-                    JSONObject properties = prepareEventObject(eventDescription).getJSONObject("properties");
-                    MixpanelEventBridge.notifyListeners(eventDescription.getEventName(), properties);
-                } catch (JSONException e) {
-                    MPLog.e(LOGTAG, "Exception notifying event bridge listeners", e);
+            private void notifyEventBridgeListeners(String eventName, JSONObject event)
+                    throws JSONException {
+                if (MixpanelEventBridge.hasListeners()) {
+                    MixpanelEventBridge.notifyListeners(eventName, listenerPropertiesOf(event));
                 }
             }
 
             private MPDbAdapter mDbAdapter;
+            private final boolean mGroupCommit = mConfig.getGroupCommit();
+            private final boolean mKeepDatabaseOpen = mConfig.getKeepDatabaseOpen();
+            private final int mDatabaseIdleTimeout = mConfig.getDatabaseIdleTimeout();
+            private boolean mIdleCloseScheduled;
+            private final boolean mIdleMaintenance = mConfig.getIdleMaintenance();
+            private DatabaseMaintenance mMaintenance;
+            private final List<MPDbAdapter.PendingInsert> mPendingInserts = new ArrayList<>();
             private final long mFlushInterval;
             private long mTrackEngageRetryAfter;
             private int mFailedRetries;
+            private final RetryBackoff mRetryBackoff =
+                    mConfig.getScheduledRetries() ? new RetryBackoff() : null;
+            private ExecutorService mFlushExecutor;
+            private final Map<String, FlushJob> mFlushJobs = new HashMap<>();
         } // AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -846,10 +1549,14 @@ import org.json.JSONObject;
 
         private final Object mHandlerLock = new Object();
         private Handler mHandler;
+        private final IngestionQueue mIngestionQueue;
+        private final IngestionQueue.FullPolicy mIngestionQueueFullPolicy;
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+        private final AtomicLong mIngestionDrops = new AtomicLong();
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
         private long mLastFlushTime = -1;
-        private SystemInformation mSystemInformation;
+        private DefaultEventProperties mDefaultEventProperties;
     }
 
     public long getTrackEngageRetryAfter() {
@@ -884,6 +1591,25 @@ import org.json.JSONObject;
             9; // Remove residual image files left from the legacy SDK versions
     private static final int CHECK_FIRST_LAUNCH =
             10; // If first launch, track FIRST_OPEN event and set hasLaunched flag
+    private static final int DRAIN_INGESTION_QUEUE =
+            11; // Process events, people and group updates waiting in the ingestion queue
+
+    private static final int COMMIT_PENDING_INSERTS =
+            12; // Write records queued for group commit in a single transaction
+
+    private static final int CLOSE_IDLE_DATABASE =
+            13; // Close the database connection if it hasn't been used for the idle timeout
+
+    private static final int FLUSH_BATCH_COMPLETE =
+            14; // A pipelined flush request finished on the flush executor
+
+    private static final int RUN_DATABASE_MAINTENANCE =
+            15; // Expire, trim or vacuum the next chunk of the database while the worker is idle
+    private static final int GROUP_COMMIT_MAX_INSERTS = 500;
+    private static final long INGESTION_QUEUE_FULL_PARK_NANOS = 1000 * 1000; // 1ms
+    private static final long INGESTION_QUEUE_FULL_MAX_WAIT_NANOS = 50 * 1000 * 1000; // 50ms
+    private static final Map<String, String> FORM_HEADERS =
+            Collections.singletonMap("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
 
@@ -0,0 +1,74 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * One pass of database upkeep, done a chunk at a time so the worker can fit it in between
+ * messages: expiring old rows from every table, trimming the oldest events while the database
+ * is over its size limit, and giving free pages back to the file system.
+ *
+ * <p>Trimming and vacuuming only happen in databases created in incremental auto_vacuum mode,
+ * since otherwise deleting rows doesn't make the file any smaller. Not thread safe, used only on
+ * the worker thread.
+ */
+/* package */ class DatabaseMaintenance {
+
+    /**
+     * @param expireBefore rows created at or before this time, in milliseconds since the epoch,
+     *     are removed
+     */
+    /* package */ DatabaseMaintenance(long expireBefore) {
+        mExpireBefore = expireBefore;
+    }
+
+    /**
+     * Does the next chunk of maintenance.
+     *
+     * @return true if there is more to do
+     */
+    /* package */ boolean runChunk(MPDbAdapter adapter) {
+        switch (mPhase) {
+            case PHASE_EXPIRE:
+                final MPDbAdapter.Table table = TABLES[mTableIndex];
+                if (adapter.cleanupEvents(mExpireBefore, table, CHUNK_ROWS) < CHUNK_ROWS) {
+                    mTableIndex++;
+                    if (mTableIndex == TABLES.length) {
+                        mPhase = adapter.isIncrementalVacuumEnabled() ? PHASE_TRIM : PHASE_DONE;
+                    }
+                }
+                return mPhase != PHASE_DONE;
+            case PHASE_TRIM:
+                if (mTrimmedChunks < MAX_TRIM_CHUNKS && adapter.aboveMemThreshold()) {
+                    mTrimmedChunks++;
+                    if (adapter.trimOldest(MPDbAdapter.Table.EVENTS, CHUNK_ROWS) > 0) {
+                        // Give the pages back right away, the size limit is checked on the file
+                        adapter.incrementalVacuum(0);
+                        return true;
+                    }
+                }
+                mPhase = PHASE_VACUUM;
+                return true;
+            case PHASE_VACUUM:
+                if (adapter.incrementalVacuum(CHUNK_PAGES) == 0) {
+                    mPhase = PHASE_DONE;
+                }
+                return mPhase != PHASE_DONE;
+            default:
+                return false;
+        }
+    }
+
+    private final long mExpireBefore;
+    private int mPhase = PHASE_EXPIRE;
+    private int mTableIndex;
+    private int mTrimmedChunks;
+
+    private static final int PHASE_EXPIRE = 0;
+    private static final int PHASE_TRIM = 1;
+    private static final int PHASE_VACUUM = 2;
+    private static final int PHASE_DONE = 3;
+
+    private static final MPDbAdapter.Table[] TABLES = MPDbAdapter.Table.values();
+    /* package */ static final int CHUNK_ROWS = 500;
+    private static final int CHUNK_PAGES = 64;
+    // A backstop, in case the file stays over the limit for some other reason
+    private static final int MAX_TRIM_CHUNKS = 20;
+}
@@ -0,0 +1,176 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import androidx.core.content.ContextCompat;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the default properties attached to every tracked event.
+ *
+ * <p>Device and application facts can't change while the process is alive, so they are computed
+ * once. Carrier, wifi and bluetooth state are only re-read after a connectivity or Bluetooth
+ * broadcast marks the snapshot stale, rather than being queried for every event.
+ */
+/* package */ class DefaultEventProperties {
+
+    /* package */ static DefaultEventProperties getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new DefaultEventProperties(appContext);
+            }
+        }
+
+        return sInstance;
+    }
+
+    private DefaultEventProperties(Context context) {
+        mSystemInformation = SystemInformation.getInstance(context);
+        mStaticProperties = buildStaticProperties(mSystemInformation);
+        mStale = true;
+        mListening = registerForChanges(context);
+    }
+
+    /**
+     * Returns the current snapshot. The returned map is immutable and may be shared freely
+     * across threads; a new map is published whenever the volatile properties change.
+     */
+    /* package */ Map<String, Object> getSnapshot() {
+        Map<String, Object> snapshot = mSnapshot;
+        if (mStale || !mListening || snapshot == null) {
+            // Clear the flag before reading, so a broadcast that arrives mid-refresh
+            // will trigger another refresh on the next event.
+            mStale = false;
+            snapshot = buildSnapshot();
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Copies every property in the current snapshot into target.
+     */
+    /* package */ void writeTo(JSONObject target) throws JSONException {
+        for (final Map.Entry<String, Object> entry : getSnapshot().entrySet()) {
+            target.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Marks carrier, wifi and bluetooth state as out of date. They will be re-read the next
+     * time a snapshot is requested.
+     */
+    /* package */ void invalidate() {
+        mStale = true;
+    }
+
+    private Map<String, Object> buildSnapshot() {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>(mStaticProperties);
+
+        final String carrier = mSystemInformation.getCurrentNetworkOperator();
+        if (null != carrier && !carrier.trim().isEmpty()) ret.put("$carrier", carrier);
+
+        final Boolean isWifi = mSystemInformation.isWifiConnected();
+        if (null != isWifi) ret.put("$wifi", isWifi.booleanValue());
+
+        final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
+        if (isBluetoothEnabled != null) ret.put("$bluetooth_enabled", isBluetoothEnabled);
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    private static Map<String, Object> buildStaticProperties(SystemInformation systemInformation) {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+
+        ret.put("mp_lib", "android");
+        ret.put("$lib_version", MPConfig.VERSION);
+
+        // For querying together with data from other libraries
+        ret.put("$os", "Android");
+        ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+
+        ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
+        ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
+        ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+
+        final DisplayMetrics displayMetrics = systemInformation.getDisplayMetrics();
+        ret.put("$screen_dpi", displayMetrics.densityDpi);
+        ret.put("$screen_height", displayMetrics.heightPixels);
+        ret.put("$screen_width", displayMetrics.widthPixels);
+
+        final String applicationVersionName = systemInformation.getAppVersionName();
+        if (null != applicationVersionName) {
+            ret.put("$app_version", applicationVersionName);
+            ret.put("$app_version_string", applicationVersionName);
+        }
+
+        final Integer applicationVersionCode = systemInformation.getAppVersionCode();
+        if (null != applicationVersionCode) {
+            final String applicationVersion = String.valueOf(applicationVersionCode);
+            ret.put("$app_release", applicationVersion);
+            ret.put("$app_build_number", applicationVersion);
+        }
+
+        final Boolean hasNFC = systemInformation.hasNFC();
+        if (null != hasNFC) ret.put("$has_nfc", hasNFC.booleanValue());
+
+        final Boolean hasTelephony = systemInformation.hasTelephony();
+        if (null != hasTelephony) ret.put("$has_telephone", hasTelephony.booleanValue());
+
+        final String bluetoothVersion = systemInformation.getBluetoothVersion();
+        if (bluetoothVersion != null) ret.put("$bluetooth_version", bluetoothVersion);
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    @SuppressWarnings("deprecation") // CONNECTIVITY_ACTION is still delivered to runtime receivers
+    private boolean registerForChanges(Context context) {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        try {
+            ContextCompat.registerReceiver(
+                    context,
+                    new BroadcastReceiver() {
+                        @Override
+                        public void onReceive(Context context, Intent intent) {
+                            invalidate();
+                        }
+                    },
+                    filter,
+                    ContextCompat.RECEIVER_NOT_EXPORTED);
+            return true;
+        } catch (final RuntimeException e) {
+            // Without change notifications, fall back to reading the volatile properties for every event
+            MPLog.w(LOGTAG, "Could not listen for connectivity changes, network properties will be read for every event", e);
+            return false;
+        }
+    }
+
+    private final SystemInformation mSystemInformation;
+    private final Map<String, Object> mStaticProperties;
+    private final boolean mListening;
+    private volatile Map<String, Object> mSnapshot;
+    private volatile boolean mStale;
+
+    private static DefaultEventProperties sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final String LOGTAG = "MixpanelAPI.DefaultProps";
+}
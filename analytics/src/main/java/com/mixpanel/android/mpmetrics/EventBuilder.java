@@ -0,0 +1,191 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Builds and tracks a single event without creating a JSONObject for its properties. Get one from
+ * {@link MixpanelAPI#event(String)}:
+ *
+ * <pre>
+ * {@code
+ * mixpanel.event("Item Purchased")
+ *         .put("price", 4.99)
+ *         .put("quantity", 2)
+ *         .put("sku", "ABC-123")
+ *         .track();
+ * }
+ * </pre>
+ *
+ * <p>Primitive values are kept unboxed until the event is written on the background worker. After
+ * {@link #track()} the builder is empty again, so it may be filled and tracked again for the same
+ * event name. Builders are not thread safe.
+ */
+public class EventBuilder {
+
+    /* package */ EventBuilder(MixpanelAPI mixpanel, String eventName) {
+        mMixpanel = mixpanel;
+        mEventName = eventName;
+    }
+
+    /**
+     * @return the name of the event this builder tracks
+     */
+    public String getEventName() {
+        return mEventName;
+    }
+
+    /**
+     * Adds a whole-number property. Adding a key twice keeps the last value.
+     *
+     * @param key the property name
+     * @param value the property value
+     * @return this builder, for chaining
+     */
+    public EventBuilder put(String key, long value) {
+        add(key, TypedProperties.TYPE_LONG, value, null);
+        return this;
+    }
+
+    /**
+     * Adds a number property. NaN and infinite values can't be sent, and are ignored.
+     *
+     * @param key the property name
+     * @param value the property value
+     * @return this builder, for chaining
+     */
+    public EventBuilder put(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            MPLog.e(LOGTAG, "Ignoring non-finite value for property " + key);
+            return this;
+        }
+        add(key, TypedProperties.TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+        return this;
+    }
+
+    /**
+     * Adds a boolean property.
+     *
+     * @param key the property name
+     * @param value the property value
+     * @return this builder, for chaining
+     */
+    public EventBuilder put(String key, boolean value) {
+        add(key, TypedProperties.TYPE_BOOLEAN, value ? 1 : 0, null);
+        return this;
+    }
+
+    /**
+     * Adds a string property.
+     *
+     * @param key the property name
+     * @param value the property value, or null to send a JSON null
+     * @return this builder, for chaining
+     */
+    public EventBuilder put(String key, String value) {
+        add(key, TypedProperties.TYPE_OBJECT, 0, value == null ? JSONObject.NULL : value);
+        return this;
+    }
+
+    /**
+     * Adds any other value a JSONObject accepts, such as a JSONObject, JSONArray or Number.
+     * JSONObject and JSONArray values are copied when added, so changes made to them afterwards
+     * aren't sent. NaN and infinite numbers, including ones nested in a JSONObject or JSONArray,
+     * can't be sent, and are ignored.
+     *
+     * @param key the property name
+     * @param value the property value, or null to send a JSON null
+     * @return this builder, for chaining
+     */
+    public EventBuilder put(String key, Object value) {
+        final Object sendable;
+        try {
+            sendable = sendableCopyOf(value);
+        } catch (final JSONException e) {
+            MPLog.e(LOGTAG, "Ignoring value that can't be sent for property " + key, e);
+            return this;
+        }
+        add(key, TypedProperties.TYPE_OBJECT, 0, sendable);
+        return this;
+    }
+
+    /**
+     * Tracks the event with the properties added so far, as {@link MixpanelAPI#track(String, JSONObject)}
+     * would, and empties the builder.
+     */
+    public void track() {
+        final TypedProperties properties = takeProperties();
+        mMixpanel.trackTypedProperties(mEventName, properties);
+    }
+
+    /* package */ TypedProperties takeProperties() {
+        final TypedProperties properties = new TypedProperties(mKeys, mTypes, mPrimitives, mObjects, mSize);
+        // The arrays now belong to properties, start over with fresh ones
+        mKeys = EMPTY_KEYS;
+        mTypes = EMPTY_TYPES;
+        mPrimitives = EMPTY_PRIMITIVES;
+        mObjects = EMPTY_OBJECTS;
+        mSize = 0;
+        return properties;
+    }
+
+    // Checked and copied here rather than on the worker, so a bad value is reported to the caller
+    private static Object sendableCopyOf(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            final double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new JSONException("Non-finite number " + value);
+            }
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            // Android's toString returns null when a nested number isn't finite
+            final String json = value.toString();
+            if (json == null) {
+                throw new JSONException("Can't write " + value.getClass().getSimpleName() + " as JSON");
+            }
+            return value instanceof JSONObject ? new JSONObject(json) : new JSONArray(json);
+        }
+        return value;
+    }
+
+    private void add(String key, byte type, long primitive, Object object) {
+        if (key == null) {
+            MPLog.e(LOGTAG, "Ignoring a property with a null name in event " + mEventName);
+            return;
+        }
+        if (mSize == mKeys.length) {
+            final int capacity = Math.max(INITIAL_CAPACITY, mSize * 2);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mPrimitives = Arrays.copyOf(mPrimitives, capacity);
+            mObjects = Arrays.copyOf(mObjects, capacity);
+        }
+        mKeys[mSize] = key;
+        mTypes[mSize] = type;
+        mPrimitives[mSize] = primitive;
+        mObjects[mSize] = object;
+        mSize++;
+    }
+
+    private final MixpanelAPI mMixpanel;
+    private final String mEventName;
+    private String[] mKeys = EMPTY_KEYS;
+    private byte[] mTypes = EMPTY_TYPES;
+    private long[] mPrimitives = EMPTY_PRIMITIVES;
+    private Object[] mObjects = EMPTY_OBJECTS;
+    private int mSize;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final String[] EMPTY_KEYS = new String[0];
+    private static final byte[] EMPTY_TYPES = new byte[0];
+    private static final long[] EMPTY_PRIMITIVES = new long[0];
+    private static final Object[] EMPTY_OBJECTS = new Object[0];
+    private static final String LOGTAG = "MixpanelAPI.EventBuilder";
+}
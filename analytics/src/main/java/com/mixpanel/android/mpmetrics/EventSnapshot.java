@@ -0,0 +1,87 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Everything track() needs to know about an event at the moment it is tracked: the immutable
+ * base property and identity snapshots, the time and a copy of the caller's properties. Merging
+ * them into the event's properties happens in {@link #materialize()}, which may run later on
+ * another thread.
+ */
+/* package */ class EventSnapshot {
+
+    /* package */ EventSnapshot(
+            Map<String, Object> baseProperties,
+            PersistentIdentity.Identity identity,
+            long time,
+            Long eventBegin,
+            JSONObject properties) throws JSONException {
+        mBaseProperties = baseProperties;
+        mIdentity = identity;
+        mTime = time;
+        mEventBegin = eventBegin;
+        mProperties = copyOf(properties);
+    }
+
+    /**
+     * Builds the event's properties: referrer and super properties, then identity, time and
+     * duration, then the caller's properties, each overriding the ones before.
+     */
+    /* package */ JSONObject materialize() throws JSONException {
+        final JSONObject messageProps = new JSONObject(mBaseProperties);
+
+        // Don't allow super properties or referral properties to override these fields,
+        // but DO allow the caller to override them in their given properties.
+        final String anonymousId = mIdentity.getAnonymousId();
+        final String userId = mIdentity.getEventsUserId();
+        messageProps.put("time", mTime);
+        messageProps.put("distinct_id", mIdentity.getEventsDistinctId());
+        messageProps.put("$had_persisted_distinct_id", mIdentity.getHadPersistedDistinctId());
+        if (anonymousId != null) {
+            messageProps.put("$device_id", anonymousId);
+        }
+        if (userId != null) {
+            messageProps.put("$user_id", userId);
+        }
+
+        if (null != mEventBegin) {
+            final double secondsElapsed = (mTime - mEventBegin) / 1000.0;
+            messageProps.put("$duration", secondsElapsed);
+        }
+
+        if (null != mProperties) {
+            final Iterator<?> propIter = mProperties.keys();
+            while (propIter.hasNext()) {
+                final String key = (String) propIter.next();
+                messageProps.put(key, mProperties.opt(key));
+            }
+        }
+
+        return messageProps;
+    }
+
+    // Copied on the caller's thread, so changes the caller makes after track() returns don't
+    // reach the event, and the worker never iterates an object the caller may be changing
+    private static JSONObject copyOf(JSONObject properties) throws JSONException {
+        if (null == properties) {
+            return null;
+        }
+        final JSONObject copy = new JSONObject();
+        final Iterator<?> propIter = properties.keys();
+        while (propIter.hasNext()) {
+            final String key = (String) propIter.next();
+            copy.put(key, properties.opt(key));
+        }
+        return copy;
+    }
+
+    private final Map<String, Object> mBaseProperties;
+    private final PersistentIdentity.Identity mIdentity;
+    private final long mTime;
+    private final Long mEventBegin;
+    private final JSONObject mProperties;
+}
@@ -39,6 +39,7 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler {
                         mixpanel.track(AutomaticEvents.APP_CRASHED, messageProp, true);
                     } catch (JSONException e) {}
                 }
+                mixpanel.flushPendingPreferenceWrites();
             }
         });
 
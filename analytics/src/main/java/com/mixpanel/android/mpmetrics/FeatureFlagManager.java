@@ -451,6 +451,25 @@ class FeatureFlagManager implements MixpanelAPI.Flags {
     mHandler.post(() -> checkFirstTimeEventOnHandlerThread(eventName, properties));
   }
 
+  /**
+   * Like {@link #checkFirstTimeEvent(String, JSONObject)}, for events tracked with an {@link
+   * EventBuilder}. Their properties are only combined into a JSONObject on the handler thread,
+   * and only if there are first-time events left to check.
+   */
+  /* package */ void checkFirstTimeEvent(@NonNull AnalyticsMessages.EventDescription event) {
+    mHandler.post(
+        () -> {
+          if (mPendingFirstTimeEvents.isEmpty()) {
+            return;
+          }
+          try {
+            checkFirstTimeEventOnHandlerThread(event.getEventName(), event.getAllProperties());
+          } catch (JSONException e) {
+            MPLog.e(LOGTAG, "Could not read properties of event " + event.getEventName(), e);
+          }
+        });
+  }
+
 
   /**
    * Asynchronously gets the feature flag variant (key and value). If flags are not loaded, it
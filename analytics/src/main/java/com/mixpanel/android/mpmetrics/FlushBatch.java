@@ -0,0 +1,101 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.Base64OutputStream;
+import com.mixpanel.android.util.RemoteService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A batch of queued records read from the database as the UTF-8 bytes they were stored as.
+ *
+ * <p>Writing the batch streams those bytes, joined into a JSON array, through a Base64 encoder
+ * into the form-encoded "data" parameter, so no JSON objects or intermediate copies of the
+ * payload are built. The output is identical to Base64 encoding the array produced by
+ * {@link MPDbAdapter#generateDataString(MPDbAdapter.Table, String)}.
+ */
+/* package */ class FlushBatch implements RemoteService.RequestBodyWriter {
+
+    /* package */ FlushBatch(String lastId, int queueCount, List<byte[]> records) {
+        mLastId = lastId;
+        mQueueCount = queueCount;
+        mRecords = records;
+        int payloadBytes = 2; // The surrounding brackets
+        for (final byte[] record : records) {
+            payloadBytes += recordLength(record) + 1;
+        }
+        mPayloadBytes = payloadBytes - (records.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * The largest row id in the batch, to delete up to once it has been sent.
+     */
+    /* package */ String getLastId() {
+        return mLastId;
+    }
+
+    /**
+     * The number of rows queued for the table and token when the batch was read.
+     */
+    /* package */ int getQueueCount() {
+        return mQueueCount;
+    }
+
+    /* package */ int getRecordCount() {
+        return mRecords.size();
+    }
+
+    /**
+     * The size of the JSON array in bytes, before any encoding.
+     */
+    /* package */ int getPayloadBytes() {
+        return mPayloadBytes;
+    }
+
+    /**
+     * Writes the records as a JSON array, without any encoding.
+     */
+    /* package */ void writeJsonTo(OutputStream out) throws IOException {
+        out.write('[');
+        for (int i = 0; i < mRecords.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            final byte[] record = mRecords.get(i);
+            out.write(record, 0, recordLength(record));
+        }
+        out.write(']');
+    }
+
+    /**
+     * Writes the form-encoded request body, the same parameters sendData posts for a batch.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(DATA_PARAMETER);
+        final Base64OutputStream encoder = new Base64OutputStream(out, true);
+        writeJsonTo(encoder);
+        encoder.finish();
+        if (MPConfig.DEBUG) {
+            out.write(VERBOSE_PARAMETER);
+        }
+    }
+
+    // Strings read as blobs may carry the database's trailing NUL terminator
+    private static int recordLength(byte[] record) {
+        int length = record.length;
+        while (length > 0 && record[length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    private final String mLastId;
+    private final int mQueueCount;
+    private final List<byte[]> mRecords;
+    private final int mPayloadBytes;
+
+    private static final byte[] DATA_PARAMETER = {'d', 'a', 't', 'a', '='};
+    private static final byte[] VERBOSE_PARAMETER = {'&', 'v', 'e', 'r', 'b', 'o', 's', 'e', '=', '1'};
+}
@@ -0,0 +1,134 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer ring buffer used to hand tracked messages
+ * to the AnalyticsMessages worker without allocating an android.os.Message per call.
+ *
+ * <p>Any number of threads may call {@link #offer(Object)}, but only one thread (the worker) may
+ * call {@link #poll()}. Each slot carries a sequence number, so producers claim slots with a
+ * single CAS and the consumer never sees a slot before its item has been published.
+ */
+/* package */ class IngestionQueue {
+
+    /**
+     * What producers do when the queue has no room left.
+     */
+    /* package */ enum FullPolicy {
+        /** Wait a short, bounded time for the worker to make room, then drop the message. */
+        BLOCK,
+        /** Drop the message being offered. The default. */
+        DROP_NEWEST,
+        /**
+         * Drop automatic events once the queue is mostly full, keeping the remaining room for
+         * events, people and group updates sent by the app. Those wait for room when full, as
+         * BLOCK does.
+         */
+        DROP_AUTOMATIC_FIRST;
+
+        /* package */ static FullPolicy fromConfig(String value) {
+            if ("block".equalsIgnoreCase(value)) {
+                return BLOCK;
+            } else if ("drop_automatic".equalsIgnoreCase(value)) {
+                return DROP_AUTOMATIC_FIRST;
+            }
+            return DROP_NEWEST;
+        }
+    }
+
+    /* package */ IngestionQueue(int requestedCapacity) {
+        final int capacity = capacityFor(requestedCapacity);
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mBuffer = new AtomicReferenceArray<Object>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+        mTail = new AtomicLong(0);
+        mHead = 0;
+    }
+
+    /**
+     * Adds an item if there is room. Safe to call from any thread.
+     *
+     * @return false if the queue was full and the item was not added
+     */
+    /* package */ boolean offer(Object item) {
+        if (item == null) {
+            throw new NullPointerException("IngestionQueue does not accept null items");
+        }
+        long position = mTail.get();
+        while (true) {
+            final int index = (int) (position & mMask);
+            final long sequence = mSequences.get(index);
+            final long difference = sequence - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mBuffer.set(index, item);
+                    // Publishing the sequence makes the item visible to the consumer
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't released this slot yet, so we've wrapped around
+                return false;
+            } else {
+                // Another producer claimed this position first
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest published item. Must only be called from the consumer thread.
+     *
+     * @return the item, or null if the queue is empty
+     */
+    /* package */ Object poll() {
+        final long position = mHead;
+        final int index = (int) (position & mMask);
+        final long sequence = mSequences.get(index);
+        if (sequence != position + 1) {
+            // Empty, or the producer that claimed this slot hasn't published yet
+            return null;
+        }
+        final Object item = mBuffer.get(index);
+        mBuffer.lazySet(index, null);
+        mSequences.set(index, position + mCapacity);
+        mHead = position + 1;
+        return item;
+    }
+
+    /**
+     * Approximate number of queued items. Exact when no producer is mid-offer.
+     */
+    /* package */ int size() {
+        final long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    /* package */ int capacity() {
+        return mCapacity;
+    }
+
+    // The smallest power of two holding requestedCapacity, between 1 and MAX_CAPACITY
+    /* package */ static int capacityFor(int requestedCapacity) {
+        final int requested = Math.min(Math.max(1, requestedCapacity), MAX_CAPACITY);
+        return requested == 1 ? 1 : Integer.highestOneBit(requested - 1) << 1;
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicReferenceArray<Object> mBuffer;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail;
+    private volatile long mHead; // Only written by the consumer
+
+    // The largest power of two an int can hold
+    private static final int MAX_CAPACITY = 1 << 30;
+}
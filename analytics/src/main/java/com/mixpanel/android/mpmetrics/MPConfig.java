@@ -11,6 +11,8 @@ import com.mixpanel.android.util.MPConstants;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.OfflineMode;
 import com.mixpanel.android.util.ProxyServerInteractor;
+import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.RemoteServiceFactory;
 import java.security.GeneralSecurityException;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -84,6 +86,73 @@ import javax.net.ssl.SSLSocketFactory;
  *   <dt>com.mixpanel.android.MPConfig.RemoveLegacyResidualFiles
  *   <dd>A boolean value. If true, Mixpanel will remove the residual files from legacy versions such
  *       as images produced by deprecated Messages and Experiment features. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.IngestionQueueCapacity
+ *   <dd>An integer count of messages. If greater than zero, tracked events, people and group
+ *       updates are handed to the background worker through a lock-free queue of (at least) this
+ *       size, and drained in batches, instead of posting one message each. Values above 65536
+ *       are ignored. Defaults to 0 (disabled).
+ *   <dt>com.mixpanel.android.MPConfig.IngestionQueueFullPolicy
+ *   <dd>A string, what to do when the ingestion queue is full. "drop_newest" discards the new
+ *       message, "block" waits up to 50ms for room and then discards it, and "drop_automatic"
+ *       discards automatic events once the queue is mostly full while other messages wait as
+ *       "block" does. Defaults to "drop_newest".
+ *   <dt>com.mixpanel.android.MPConfig.GroupCommit
+ *   <dd>A boolean value. If true, events, people and group updates waiting for the background
+ *       worker are written to the database together in a single transaction, rather than one
+ *       transaction each. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.KeepDatabaseOpen
+ *   <dd>A boolean value. If true, the background worker keeps its database connection open
+ *       between operations, in write-ahead logging mode and with its statements compiled once,
+ *       instead of reopening the database for every operation. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.DatabaseIdleTimeout
+ *   <dd>An integer number of milliseconds. When KeepDatabaseOpen is true, the connection is
+ *       closed after it has been unused for this long. Zero or less keeps it open for the life
+ *       of the process. Defaults to 30000 (30 seconds).
+ *   <dt>com.mixpanel.android.MPConfig.StreamingFlush
+ *   <dd>A boolean value. If true, queued records are streamed from the database into the
+ *       request body as they are stored, rather than parsed and re-serialized into an in-memory
+ *       copy of the whole batch first. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.FlushBatchMaxBytes
+ *   <dd>An integer number of bytes. Limits each flush request to this many bytes of
+ *       uncompressed JSON, in addition to FlushBatchSize records. A batch always holds at least
+ *       one record. Zero or less means no byte limit. Defaults to 0.
+ *   <dt>com.mixpanel.android.MPConfig.PipelinedFlush
+ *   <dd>A boolean value. If true, each flush request is made on a separate thread while the
+ *       background worker reads the next batch and deletes the batch acknowledged before it.
+ *       The worker never waits on the network, so events and people updates keep being
+ *       stored while a request is in flight. Batches are still sent in order, one at a time.
+ *       Set it to false to make every request on the worker thread, as older versions did.
+ *       Defaults to true.
+ *   <dt>com.mixpanel.android.MPConfig.PreferencesWriteDelay
+ *   <dd>An integer number of milliseconds. Super property and identity changes made within this
+ *       window are coalesced into a single SharedPreferences write, made off the calling thread.
+ *       Pending writes are made right away when the app goes to the background or crashes.
+ *       Zero or less writes every change immediately. Defaults to 0.
+ *   <dt>com.mixpanel.android.MPConfig.DeferEventMaterialization
+ *   <dd>A boolean value. If true, track() only captures the super properties, identity and time
+ *       of an event, and its properties are merged on the background worker. JSONObject
+ *       properties passed to track() must not be modified afterwards. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.DeferredStartup
+ *   <dd>A boolean value. If true, MixpanelAPI only sets up what tracking needs when it is
+ *       created, and legacy file cleanup and the Session Replay receiver wait until the main
+ *       thread is idle. Automatic events are always queued in the constructor, ahead of events
+ *       tracked by the app. The cost of each stage is written to the verbose log. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.IdleMaintenance
+ *   <dd>A boolean value. If true, expired records are removed from every table a chunk at a
+ *       time while the background worker is idle, rather than all at once before it handles its
+ *       first message. New databases are also created in incremental auto_vacuum mode, so the
+ *       oldest events can be trimmed and space returned when the database is over its size
+ *       limit. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.ScheduledRetries
+ *   <dd>A boolean value. If true, a failed flush request isn't retried by sleeping on the
+ *       sending thread. The background worker schedules the retry instead, so it keeps handling
+ *       new events in the meantime. The first two retries come quickly, later ones back off
+ *       exponentially up to ten minutes, and every delay is randomized. Defaults to false.
+ *   <dt>com.mixpanel.android.MPConfig.HostHealthRouting
+ *   <dd>A boolean value. If true and a backup host is set, failures of the primary and backup
+ *       hosts are tracked across requests. While the primary keeps failing, requests go straight
+ *       to the backup instead of waiting for the primary to time out first, and the primary is
+ *       retried with a single request every so often. Defaults to false.
  * </dl>
  */
 public class MPConfig {
@@ -164,6 +233,25 @@ public class MPConfig {
         mOfflineMode = offlineMode;
     }
 
+    /**
+     * Mixpanel sends its requests with {@link com.mixpanel.android.util.HttpService}, which uses
+     * HttpURLConnection. If your app already ships an HTTP client, for example one that multiplexes
+     * requests over HTTP/2, you can have Mixpanel use it instead by calling {@link
+     * #setRemoteServiceFactory(RemoteServiceFactory)} early in your code, like this
+     *
+     * <p>{@code <pre> MPConfig.getInstance(context).setRemoteServiceFactory(factoryImplementation);
+     * </pre> }
+     *
+     * <p>The call is thread safe, but should be done before your first call to
+     * MixpanelAPI.getInstance, since instances ask the factory for their transports when they first
+     * need them.
+     *
+     * @param factory creates the transports Mixpanel uses, or null to use HttpService
+     */
+    public synchronized void setRemoteServiceFactory(RemoteServiceFactory factory) {
+        mRemoteServiceFactory = factory;
+    }
+
     /* package */ MPConfig(Bundle metaData, Context context, String instanceName) {
 
         // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
@@ -230,6 +318,34 @@ public class MPConfig {
                 metaData.getBoolean("com.mixpanel.android.MPConfig.UseIpAddressForGeolocation", true);
         mRemoveLegacyResidualFiles =
                 metaData.getBoolean("com.mixpanel.android.MPConfig.RemoveLegacyResidualFiles", false);
+        final int ingestionQueueCapacity =
+                metaData.getInt("com.mixpanel.android.MPConfig.IngestionQueueCapacity", 0);
+        if (ingestionQueueCapacity < 0 || ingestionQueueCapacity > MAX_INGESTION_QUEUE_CAPACITY) {
+            MPLog.w(LOGTAG, "IngestionQueueCapacity must be between 0 and "
+                    + MAX_INGESTION_QUEUE_CAPACITY + ", ignoring " + ingestionQueueCapacity);
+            mIngestionQueueCapacity = 0;
+        } else {
+            mIngestionQueueCapacity = ingestionQueueCapacity;
+        }
+        final String ingestionQueueFullPolicy =
+                metaData.getString("com.mixpanel.android.MPConfig.IngestionQueueFullPolicy");
+        mIngestionQueueFullPolicy =
+                ingestionQueueFullPolicy == null ? "drop_newest" : ingestionQueueFullPolicy;
+        mGroupCommit = metaData.getBoolean("com.mixpanel.android.MPConfig.GroupCommit", false);
+        mKeepDatabaseOpen =
+                metaData.getBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", false);
+        mDatabaseIdleTimeout =
+                metaData.getInt(
+                        "com.mixpanel.android.MPConfig.DatabaseIdleTimeout", 30 * 1000); // 30 seconds
+        mStreamingFlush = metaData.getBoolean("com.mixpanel.android.MPConfig.StreamingFlush", false);
+        mFlushBatchMaxBytes = metaData.getInt("com.mixpanel.android.MPConfig.FlushBatchMaxBytes", 0);
+        mPipelinedFlush = metaData.getBoolean("com.mixpanel.android.MPConfig.PipelinedFlush", true);
+        mPreferencesWriteDelay = metaData.getInt("com.mixpanel.android.MPConfig.PreferencesWriteDelay", 0);
+        mDeferEventMaterialization = metaData.getBoolean("com.mixpanel.android.MPConfig.DeferEventMaterialization", false);
+        mDeferredStartup = metaData.getBoolean("com.mixpanel.android.MPConfig.DeferredStartup", false);
+        mIdleMaintenance = metaData.getBoolean("com.mixpanel.android.MPConfig.IdleMaintenance", false);
+        mScheduledRetries = metaData.getBoolean("com.mixpanel.android.MPConfig.ScheduledRetries", false);
+        mHostHealthRouting = metaData.getBoolean("com.mixpanel.android.MPConfig.HostHealthRouting", false);
 
         Object dataExpirationMetaData = metaData.get("com.mixpanel.android.MPConfig.DataExpiration");
         long dataExpirationLong = 1000 * 60 * 60 * 24 * 5; // 5 days default
@@ -488,6 +604,76 @@ public class MPConfig {
         return mRemoveLegacyResidualFiles;
     }
 
+    // Capacity of the lock-free queue in front of the background worker, or 0 if it isn't used
+    public int getIngestionQueueCapacity() {
+        return mIngestionQueueCapacity;
+    }
+
+    // One of "drop_newest", "block" or "drop_automatic"
+    public String getIngestionQueueFullPolicy() {
+        return mIngestionQueueFullPolicy;
+    }
+
+    // Whether queued records are written to the database in batches
+    public boolean getGroupCommit() {
+        return mGroupCommit;
+    }
+
+    // Whether the worker's database connection stays open between operations
+    public boolean getKeepDatabaseOpen() {
+        return mKeepDatabaseOpen;
+    }
+
+    // Milliseconds an open database connection may sit unused before it's closed
+    public int getDatabaseIdleTimeout() {
+        return mDatabaseIdleTimeout;
+    }
+
+    // Whether flushes stream stored records into the request instead of rebuilding them
+    public boolean getStreamingFlush() {
+        return mStreamingFlush;
+    }
+
+    // Maximum uncompressed bytes per flush request, zero or less for no limit
+    public int getFlushBatchMaxBytes() {
+        return mFlushBatchMaxBytes;
+    }
+
+    // Whether the next batch is prepared while the current one is being sent
+    public boolean getPipelinedFlush() {
+        return mPipelinedFlush;
+    }
+
+    // Milliseconds super property and identity changes are held before being written
+    public int getPreferencesWriteDelay() {
+        return mPreferencesWriteDelay;
+    }
+
+    // Whether event properties are merged on the worker rather than in track()
+    public boolean getDeferEventMaterialization() {
+        return mDeferEventMaterialization;
+    }
+
+    // Whether non-essential startup work waits until the main thread is idle
+    public boolean getDeferredStartup() {
+        return mDeferredStartup;
+    }
+
+    // Whether the database is expired, trimmed and vacuumed in chunks while the worker is idle
+    public boolean getIdleMaintenance() {
+        return mIdleMaintenance;
+    }
+
+    // Whether flush retries are scheduled on the worker rather than slept through in HttpService
+    public boolean getScheduledRetries() {
+        return mScheduledRetries;
+    }
+
+    // Whether flushes skip a failing primary host and go straight to the backup
+    public boolean getHostHealthRouting() {
+        return mHostHealthRouting;
+    }
+
     public void setUseIpAddressForGeolocation(boolean useIpAddressForGeolocation) {
         mUseIpAddressForGeolocation = useIpAddressForGeolocation;
         setEventsEndpoint(
@@ -533,6 +719,26 @@ public class MPConfig {
         return mOfflineMode;
     }
 
+    // This method is thread safe, and assumes that RemoteServiceFactory is also thread safe
+    public synchronized RemoteServiceFactory getRemoteServiceFactory() {
+        return mRemoteServiceFactory;
+    }
+
+    // Returns the transport to use in place of defaultService, which is kept if there is no
+    // factory or the factory doesn't supply one
+    /* package */ RemoteService makeRemoteService(RemoteService defaultService) {
+        final RemoteServiceFactory factory = getRemoteServiceFactory();
+        if (null == factory) {
+            return defaultService;
+        }
+        final RemoteService service = factory.createRemoteService(defaultService);
+        if (null == service) {
+            MPLog.w(LOGTAG, "RemoteServiceFactory returned null, using the default HttpService");
+            return defaultService;
+        }
+        return service;
+    }
+
     ///////////////////////////////////////////////
 
     public ProxyServerInteractor getProxyServerInteractor() {
@@ -615,7 +821,49 @@ public class MPConfig {
                 + getDisableExceptionHandler()
                 + "\n"
                 + "    FlushOnBackground: "
-                + getFlushOnBackground();
+                + getFlushOnBackground()
+                + "\n"
+                + "    IngestionQueueCapacity: "
+                + getIngestionQueueCapacity()
+                + "\n"
+                + "    IngestionQueueFullPolicy: "
+                + getIngestionQueueFullPolicy()
+                + "\n"
+                + "    GroupCommit: "
+                + getGroupCommit()
+                + "\n"
+                + "    KeepDatabaseOpen: "
+                + getKeepDatabaseOpen()
+                + "\n"
+                + "    DatabaseIdleTimeout: "
+                + getDatabaseIdleTimeout()
+                + "\n"
+                + "    StreamingFlush: "
+                + getStreamingFlush()
+                + "\n"
+                + "    FlushBatchMaxBytes: "
+                + getFlushBatchMaxBytes()
+                + "\n"
+                + "    PipelinedFlush: "
+                + getPipelinedFlush()
+                + "\n"
+                + "    PreferencesWriteDelay: "
+                + getPreferencesWriteDelay()
+                + "\n"
+                + "    DeferEventMaterialization: "
+                + getDeferEventMaterialization()
+                + "\n"
+                + "    DeferredStartup: "
+                + getDeferredStartup()
+                + "\n"
+                + "    IdleMaintenance: "
+                + getIdleMaintenance()
+                + "\n"
+                + "    ScheduledRetries: "
+                + getScheduledRetries()
+                + "\n"
+                + "    HostHealthRouting: "
+                + getHostHealthRouting();
     }
 
     private final int mBulkUploadLimit;
@@ -641,11 +889,27 @@ public class MPConfig {
     private final int mSessionTimeoutDuration;
     private boolean mUseIpAddressForGeolocation;
     private final boolean mRemoveLegacyResidualFiles;
+    private final int mIngestionQueueCapacity;
+    private final String mIngestionQueueFullPolicy;
+    private final boolean mGroupCommit;
+    private final boolean mKeepDatabaseOpen;
+    private final int mDatabaseIdleTimeout;
+    private final boolean mStreamingFlush;
+    private final int mFlushBatchMaxBytes;
+    private final boolean mPipelinedFlush;
+    private final int mPreferencesWriteDelay;
+    private final boolean mDeferEventMaterialization;
+    private final boolean mDeferredStartup;
+    private final boolean mIdleMaintenance;
+    private final boolean mScheduledRetries;
+    private final boolean mHostHealthRouting;
     private String mBackupHost;
 
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
     private OfflineMode mOfflineMode;
+    private RemoteServiceFactory mRemoteServiceFactory;
     private ProxyServerInteractor serverCallbacks = null;
     private static final String LOGTAG = "MixpanelAPI.Conf";
+    private static final int MAX_INGESTION_QUEUE_CAPACITY = 1 << 16;
 }
@@ -2,7 +2,11 @@ package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import androidx.annotation.Nullable;
@@ -14,9 +18,11 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.mixpanel.android.util.MPLog;
 
@@ -52,23 +58,27 @@ import com.mixpanel.android.util.MPLog;
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_DATA_SIZE = "data_size";
 
     public static final int ID_COLUMN_INDEX = 0;
     public static final int DATA_COLUMN_INDEX = 1;
     public static final int CREATED_AT_COLUMN_INDEX = 2;
     public static final int AUTOMATIC_DATA_COLUMN_INDEX = 3;
     public static final int TOKEN_COLUMN_INDEX = 4;
+    public static final int DATA_SIZE_COLUMN_INDEX = 5;
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
     public static final int DB_UNDEFINED_CODE = -3;
 
+    private static final long AUTO_VACUUM_INCREMENTAL = 2; // PRAGMA auto_vacuum value
+
     private static final String DATABASE_NAME = "mixpanel";
     private static final int MIN_DB_VERSION = 4;
 
     // If you increment DATABASE_VERSION, don't forget to define migration
-    private static final int DATABASE_VERSION = 7; // current database version
-    private static final int MAX_DB_VERSION = 7; // Max database version onUpdate can migrate to.
+    private static final int DATABASE_VERSION = 9; // current database version
+    private static final int MAX_DB_VERSION = 9; // Max database version onUpdate can migrate to.
 
 
     private static final String CREATE_EVENTS_TABLE =
@@ -76,25 +86,29 @@ import com.mixpanel.android.util.MPLog;
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_PEOPLE_TABLE =
        "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_GROUPS_TABLE =
             "CREATE TABLE " + Table.GROUPS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_ANONYMOUS_PEOPLE_TABLE =
             "CREATE TABLE " + Table.ANONYMOUS_PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -107,8 +121,33 @@ import com.mixpanel.android.util.MPLog;
     private static final String ANONYMOUS_PEOPLE_TIME_INDEX =
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
                     " (" + KEY_CREATED_AT + ");";
+    private static final String EVENTS_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + Table.EVENTS.getName() + "_token_id_idx ON " + Table.EVENTS.getName() +
+                    " (" + KEY_TOKEN + ", _id);";
+    private static final String PEOPLE_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + Table.PEOPLE.getName() + "_token_id_idx ON " + Table.PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", _id);";
+    private static final String GROUPS_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + Table.GROUPS.getName() + "_token_id_idx ON " + Table.GROUPS.getName() +
+                    " (" + KEY_TOKEN + ", _id);";
+    private static final String ANONYMOUS_PEOPLE_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + Table.ANONYMOUS_PEOPLE.getName() + "_token_id_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", _id);";
 
     private final MPDatabaseHelper mDb;
+    private final boolean mKeepOpen;
+    private long mLastUsedTime;
+
+    // Compiled statements, one per table, valid until the connection is closed
+    private SQLiteDatabase mStatementsDb;
+    private final SQLiteStatement[] mInsertStatements = new SQLiteStatement[Table.values().length];
+    private final SQLiteStatement[] mCountStatements = new SQLiteStatement[Table.values().length];
+    private final SQLiteStatement[] mDeleteRangeStatements = new SQLiteStatement[Table.values().length];
+    private static final String[] SELECT_BATCH_QUERIES = selectBatchQueries();
+    private static final String[] SELECT_BATCH_AFTER_QUERIES = selectBatchAfterQueries();
+
+    // Rows per table and token, valid until the connection is closed
+    private final Map<Table, Map<String, Integer>> mRowCounts = new EnumMap<>(Table.class);
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
         MPDatabaseHelper(Context context, String dbName, MPConfig config) {
@@ -117,6 +156,10 @@ import com.mixpanel.android.util.MPLog;
             mIsNewDatabase = !mDatabaseFile.exists();
             mConfig = config;
             mContext = context;
+            if (config.getKeepDatabaseOpen()) {
+                // Readers and the writer don't block each other, and commits only append to the log
+                setWriteAheadLoggingEnabled(true);
+            }
         }
 
         /**
@@ -132,7 +175,17 @@ import com.mixpanel.android.util.MPLog;
          */
         public void deleteDatabase() {
             close();
-            mDatabaseFile.delete();
+            // Also removes the -wal and -shm files left by write-ahead logging
+            SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Only takes effect before the first table is created, existing databases keep
+            // their mode
+            if (mIsNewDatabase && mConfig.getIdleMaintenance()) {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            }
         }
 
         @Override
@@ -147,6 +200,10 @@ import com.mixpanel.android.util.MPLog;
             db.execSQL(PEOPLE_TIME_INDEX);
             db.execSQL(GROUPS_TIME_INDEX);
             db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+            db.execSQL(GROUPS_TOKEN_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
         }
 
         @Override
@@ -158,15 +215,30 @@ import com.mixpanel.android.util.MPLog;
                     migrateTableFrom4To5(db);
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 5) {
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 6) {
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                }
+
+                if (oldVersion == 7) {
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                }
+
+                if (oldVersion == 8) {
+                    migrateTableFrom8To9(db);
                 }
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
@@ -181,6 +253,10 @@ import com.mixpanel.android.util.MPLog;
                 db.execSQL(PEOPLE_TIME_INDEX);
                 db.execSQL(GROUPS_TIME_INDEX);
                 db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+                db.execSQL(EVENTS_TOKEN_INDEX);
+                db.execSQL(PEOPLE_TOKEN_INDEX);
+                db.execSQL(GROUPS_TOKEN_INDEX);
+                db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
             }
         }
 
@@ -288,6 +364,38 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
+        private void migrateTableFrom7To8(SQLiteDatabase db) {
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+            db.execSQL(GROUPS_TOKEN_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
+        }
+
+        private void migrateTableFrom8To9(SQLiteDatabase db) {
+            for (final Table table : Table.values()) {
+                // Tables created by earlier migrations in this upgrade already have the column
+                if (!hasColumn(db, table, KEY_DATA_SIZE)) {
+                    db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0");
+                }
+                db.execSQL("UPDATE " + table.getName() + " SET " + KEY_DATA_SIZE + " = LENGTH(CAST(" + KEY_DATA + " AS BLOB))");
+            }
+        }
+
+        private boolean hasColumn(SQLiteDatabase db, Table table, String column) {
+            final Cursor c = db.rawQuery("PRAGMA table_info(" + table.getName() + ")", null);
+            try {
+                final int nameColumnIndex = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    if (column.equals(c.getString(nameColumnIndex))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                c.close();
+            }
+        }
+
         private final File mDatabaseFile;
         private final boolean mIsNewDatabase;
         private final MPConfig mConfig;
@@ -304,6 +412,7 @@ import com.mixpanel.android.util.MPLog;
 
     public MPDbAdapter(Context context, String dbName, MPConfig config) {
         mDb = new MPDatabaseHelper(context, dbName, config);
+        mKeepOpen = config.getKeepDatabaseOpen();
     }
 
     public static MPDbAdapter getInstance(Context context, MPConfig config) {
@@ -338,23 +447,21 @@ import com.mixpanel.android.util.MPLog;
             return DB_OUT_OF_MEMORY_ERROR;
         }
 
-        final String tableName = table.getName();
-
-        Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
+            final SQLiteStatement insert = getInsertStatement(db, table);
+            final String data = j.toString();
+            insert.bindString(1, data);
+            insert.bindLong(2, System.currentTimeMillis());
+            insert.bindString(3, token);
+            insert.bindLong(4, utf8Length(data));
+            insert.executeInsert();
+            adjustRowCount(table, token, 1);
 
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = countRows(db, table, token);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not add Mixpanel data to table");
 
@@ -362,22 +469,113 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
+            deleteDatabase();
         } catch (final OutOfMemoryError e) {
             MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to table");
         } finally {
-            if (c != null) {
-                c.close();
-            }
-            mDb.close();
+            releaseDatabase();
         }
         return count;
     }
 
+    /**
+     * A record waiting to be written by {@link #addJSONs(List)}.
+     */
+    /* package */ static class PendingInsert {
+        /* package */ PendingInsert(JSONObject data, String token, Table table) {
+            mData = data;
+            mToken = token;
+            mTable = table;
+        }
+
+        public JSONObject getData() {
+            return mData;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public Table getTable() {
+            return mTable;
+        }
+
+        private final JSONObject mData;
+        private final String mToken;
+        private final Table mTable;
+    }
+
+    /**
+     * Adds several records in one transaction, with one compiled insert statement per table,
+     * instead of opening the database and committing once per record.
+     * @param inserts the records to write, in order
+     * @return for each record, the number of rows in its table for its token once the whole
+     * batch is written, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    public int[] addJSONs(List<PendingInsert> inserts) {
+        final int[] counts = new int[inserts.size()];
+        // we are aware of the race condition here, but what can we do..?
+        if (this.aboveMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device or " +
+                    "the data was over the maximum size limit so it was discarded");
+            Arrays.fill(counts, DB_OUT_OF_MEMORY_ERROR);
+            return counts;
+        }
+        Arrays.fill(counts, DB_UPDATE_ERROR);
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final long now = System.currentTimeMillis();
+
+            db.beginTransaction();
+            try {
+                for (final PendingInsert insert : inserts) {
+                    final SQLiteStatement statement = getInsertStatement(db, insert.getTable());
+                    final String data = insert.getData().toString();
+                    statement.bindString(1, data);
+                    statement.bindLong(2, now);
+                    statement.bindString(3, insert.getToken());
+                    statement.bindLong(4, utf8Length(data));
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (final PendingInsert insert : inserts) {
+                adjustRowCount(insert.getTable(), insert.getToken(), 1);
+            }
+
+            // Count each table and token once, rather than once per record
+            final Map<String, Integer> countsByTableAndToken = new HashMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                final PendingInsert insert = inserts.get(i);
+                final String key = insert.getTable().getName() + ":" + insert.getToken();
+                Integer count = countsByTableAndToken.get(key);
+                if (count == null) {
+                    count = countRows(db, insert.getTable(), insert.getToken());
+                    countsByTableAndToken.put(key, count);
+                }
+                counts[i] = count;
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not add Mixpanel data to table");
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            deleteDatabase();
+            Arrays.fill(counts, DB_UPDATE_ERROR);
+        } catch (final OutOfMemoryError e) {
+            MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to table");
+            Arrays.fill(counts, DB_UPDATE_ERROR);
+        } finally {
+            releaseDatabase();
+        }
+        return counts;
+    }
+
     /**
      * Copies anonymous people updates to people db after a user has been identified
      * @param token project token
@@ -413,7 +611,9 @@ import com.mixpanel.android.util.MPLog;
                         final int dataColumnIndex = selectCursor.getColumnIndex(KEY_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
                         JSONObject updatedData = new JSONObject(selectCursor.getString(dataColumnIndex));
                         updatedData.put("$distinct_id", distinctId);
-                        values.put(KEY_DATA, updatedData.toString());
+                        final String data = updatedData.toString();
+                        values.put(KEY_DATA, data);
+                        values.put(KEY_DATA_SIZE, utf8Length(data));
                         db.insert(Table.PEOPLE.getName(), null, values);
                         final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
                         int rowId = selectCursor.getInt(idColumnIndex);
@@ -426,6 +626,8 @@ import com.mixpanel.android.util.MPLog;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                invalidateRowCounts(Table.PEOPLE);
+                invalidateRowCounts(Table.ANONYMOUS_PEOPLE);
             }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing database.", e);
@@ -438,12 +640,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDatabase();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -484,7 +686,9 @@ import com.mixpanel.android.util.MPLog;
                             existingProps.put(key, value);
                         }
                         updatedData.put("properties", existingProps);
-                        values.put(KEY_DATA, updatedData.toString());
+                        final String data = updatedData.toString();
+                        values.put(KEY_DATA, data);
+                        values.put(KEY_DATA_SIZE, utf8Length(data));
                         final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
                         int rowId = selectCursor.getInt(idColumnIndex);
                         db.update(Table.EVENTS.getName(), values, "_id = " + rowId, null);
@@ -508,12 +712,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDatabase();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -529,9 +733,10 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
-
-            db.delete(tableName, deleteQuery.toString(), null);
+            final SQLiteStatement delete = getDeleteRangeStatement(db, table);
+            delete.bindString(1, last_id);
+            delete.bindString(2, token);
+            adjustRowCount(table, token, -delete.executeUpdateDelete());
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -539,12 +744,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDatabase();
         } catch (final Exception e) {
             MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mixpanel records from " + tableName + ".Re-initializing database.", e);
-            mDb.deleteDatabase();
+            deleteDatabase();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -558,7 +763,10 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            if (db.delete(tableName, KEY_CREATED_AT + " <= " + time, null) > 0) {
+                // We don't know which tokens the expired rows belonged to
+                invalidateRowCounts(table);
+            }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -566,9 +774,103 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDatabase();
         } finally {
-            mDb.close();
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Removes at most limit rows created before time, oldest first, so large backlogs can be
+     * expired a piece at a time.
+     * @param time the unix epoch in milliseconds to remove rows before
+     * @param table the table to remove rows from
+     * @param limit the most rows to remove
+     * @return the number of rows removed
+     */
+    /* package */ int cleanupEvents(long time, Table table, int limit) {
+        return deleteOldest(table, KEY_CREATED_AT + " <= " + time, limit, "timed-out");
+    }
+
+    /**
+     * Removes the oldest rows from table, whatever their age.
+     * @param table the table to remove rows from
+     * @param limit the most rows to remove
+     * @return the number of rows removed
+     */
+    /* package */ int trimOldest(Table table, int limit) {
+        return deleteOldest(table, "1", limit, "the oldest");
+    }
+
+    private int deleteOldest(Table table, String where, int limit, String description) {
+        final String tableName = table.getName();
+        int deleted = 0;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            deleted = db.delete(tableName, "_id IN (SELECT _id FROM " + tableName + " WHERE " + where +
+                    " ORDER BY _id ASC LIMIT " + limit + ")", null);
+            if (deleted > 0) {
+                // We don't know which tokens the removed rows belonged to
+                invalidateRowCounts(table);
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean " + description + " Mixpanel records from " + tableName + ". Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            deleteDatabase();
+        } finally {
+            releaseDatabase();
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Returns true if the database was created in incremental auto_vacuum mode, so
+     * {@link #incrementalVacuum(int)} can give space back to the file system.
+     */
+    /* package */ boolean isIncrementalVacuumEnabled() {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read the Mixpanel database vacuum mode", e);
+            return false;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Returns up to pages free pages to the file system, or every free page if pages is zero
+     * or less. Does nothing unless {@link #isIncrementalVacuumEnabled()}.
+     * @return the number of free pages left
+     */
+    /* package */ long incrementalVacuum(int pages) {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                return 0;
+            }
+            // The pragma frees one page per step, so the cursor has to be read to the end
+            final Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // Keep stepping
+                }
+            } finally {
+                cursor.close();
+            }
+            return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not vacuum the Mixpanel database", e);
+            return 0;
+        } finally {
+            releaseDatabase();
         }
     }
 
@@ -583,6 +885,7 @@ import com.mixpanel.android.util.MPLog;
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(tableName, KEY_TOKEN + " = '" + token + "'", null);
+            setRowCount(table, token, 0);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -590,16 +893,178 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDatabase();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
     public void deleteDB() {
+        deleteDatabase();
+    }
+
+    /**
+     * Closes the database connection and any cached statements. The next operation will
+     * reopen it.
+     */
+    public void close() {
+        clearStatements();
+        mDb.close();
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, when the database was last used.
+     */
+    /* package */ long getLastUsedTime() {
+        return mLastUsedTime;
+    }
+
+    private void releaseDatabase() {
+        mLastUsedTime = System.currentTimeMillis();
+        if (!mKeepOpen) {
+            close();
+        }
+    }
+
+    private void deleteDatabase() {
+        clearStatements();
+        mRowCounts.clear();
         mDb.deleteDatabase();
     }
 
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db, Table table) {
+        checkStatementsDatabase(db);
+        final int index = table.ordinal();
+        if (mInsertStatements[index] == null) {
+            mInsertStatements[index] = db.compileStatement("INSERT INTO " + table.getName() +
+                    " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_TOKEN + ", " + KEY_DATA_SIZE + ") VALUES (?, ?, ?, ?)");
+        }
+        return mInsertStatements[index];
+    }
+
+    private SQLiteStatement getCountStatement(SQLiteDatabase db, Table table) {
+        checkStatementsDatabase(db);
+        final int index = table.ordinal();
+        if (mCountStatements[index] == null) {
+            mCountStatements[index] = db.compileStatement("SELECT COUNT(*) FROM " + table.getName() +
+                    " WHERE " + KEY_TOKEN + " = ?");
+        }
+        return mCountStatements[index];
+    }
+
+    private SQLiteStatement getDeleteRangeStatement(SQLiteDatabase db, Table table) {
+        checkStatementsDatabase(db);
+        final int index = table.ordinal();
+        if (mDeleteRangeStatements[index] == null) {
+            mDeleteRangeStatements[index] = db.compileStatement("DELETE FROM " + table.getName() +
+                    " WHERE _id <= ? AND " + KEY_TOKEN + " = ?");
+        }
+        return mDeleteRangeStatements[index];
+    }
+
+    /**
+     * Returns the number of rows in table for token. Answered from memory once a table and
+     * token have been counted on the current connection, and counted (using the token index)
+     * otherwise, so the counters are reconciled with the database each time it's opened.
+     */
+    private int countRows(SQLiteDatabase db, Table table, String token) {
+        checkStatementsDatabase(db);
+        Map<String, Integer> tableCounts = mRowCounts.get(table);
+        if (tableCounts == null) {
+            tableCounts = new HashMap<>();
+            mRowCounts.put(table, tableCounts);
+        }
+        Integer count = tableCounts.get(token);
+        if (count == null) {
+            final SQLiteStatement countStatement = getCountStatement(db, table);
+            countStatement.bindString(1, token);
+            count = (int) countStatement.simpleQueryForLong();
+            tableCounts.put(token, count);
+        }
+        return count;
+    }
+
+    // Only adjusts counters we already hold. Unknown ones are counted when next needed.
+    private void adjustRowCount(Table table, String token, int delta) {
+        final Map<String, Integer> tableCounts = mRowCounts.get(table);
+        if (tableCounts != null) {
+            final Integer count = tableCounts.get(token);
+            if (count != null) {
+                tableCounts.put(token, Math.max(0, count + delta));
+            }
+        }
+    }
+
+    private void setRowCount(Table table, String token, int count) {
+        Map<String, Integer> tableCounts = mRowCounts.get(table);
+        if (tableCounts == null) {
+            tableCounts = new HashMap<>();
+            mRowCounts.put(table, tableCounts);
+        }
+        tableCounts.put(token, count);
+    }
+
+    private void invalidateRowCounts(Table table) {
+        mRowCounts.remove(table);
+    }
+
+    // Statements and row counters belong to the connection they were made on
+    private void checkStatementsDatabase(SQLiteDatabase db) {
+        if (mStatementsDb != db) {
+            clearStatements();
+            mStatementsDb = db;
+        }
+    }
+
+    private void clearStatements() {
+        closeStatements(mInsertStatements);
+        closeStatements(mCountStatements);
+        closeStatements(mDeleteRangeStatements);
+        mStatementsDb = null;
+        mRowCounts.clear();
+    }
+
+    private static void closeStatements(SQLiteStatement[] statements) {
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] != null) {
+                statements[i].close();
+                statements[i] = null;
+            }
+        }
+    }
+
+    // Rows are deleted by id, so every batch is read in id order. Ordering by created_at would
+    // let a row with an out of order timestamp be skipped, or deleted without being sent.
+    private static String[] selectBatchQueries() {
+        final Table[] tables = Table.values();
+        final String[] queries = new String[tables.length];
+        for (final Table table : tables) {
+            queries[table.ordinal()] = "SELECT * FROM " + table.getName() + " WHERE " + KEY_TOKEN + " = ? " +
+                    "ORDER BY _id ASC LIMIT ?";
+        }
+        return queries;
+    }
+
+    private static String[] selectBatchAfterQueries() {
+        final Table[] tables = Table.values();
+        final String[] queries = new String[tables.length];
+        for (final Table table : tables) {
+            queries[table.ordinal()] = "SELECT * FROM " + table.getName() + " WHERE " + KEY_TOKEN + " = ? " +
+                    "AND _id > ? ORDER BY _id ASC LIMIT ?";
+        }
+        return queries;
+    }
+
+    private Cursor queryBatch(SQLiteDatabase db, Table table, String token, String afterId) {
+        final String limit = Integer.toString(mDb.mConfig.getFlushBatchSize());
+        if (afterId == null) {
+            // The SQL text only depends on the table, so the connection's prepared statement
+            // cache can reuse the compiled query across batches.
+            return db.rawQuery(SELECT_BATCH_QUERIES[table.ordinal()], new String[] { token, limit });
+        }
+        return db.rawQuery(SELECT_BATCH_AFTER_QUERIES[table.ordinal()], new String[] { token, afterId, limit });
+    }
+
     /**
      * Returns the data string to send to Mixpanel and the maximum ID of the row that
      * we're sending, so we know what rows to delete when a track request was successful.
@@ -611,8 +1076,17 @@ import com.mixpanel.android.util.MPLog;
      * current number of events in the queue.
      */
     public String[] generateDataString(Table table, String token) {
+        return generateDataString(table, token, null);
+    }
+
+    /**
+     * Like {@link #generateDataString(Table, String)}, but only reads rows after afterId. Used to
+     * read the next batch while an earlier one is still waiting to be acknowledged and deleted.
+     *
+     * @param afterId the last ID of the batch in flight, or null to start from the oldest row
+     */
+    /* package */ String[] generateDataString(Table table, String token, String afterId) {
         Cursor c = null;
-        Cursor queueCountCursor = null;
         String data = null;
         String last_id = null;
         String queueCount = null;
@@ -620,26 +1094,18 @@ import com.mixpanel.android.util.MPLog;
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-
+            c = queryBatch(db, table, token, afterId);
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT " + Integer.toString(mDb.mConfig.getFlushBatchSize()));
-            c = db.rawQuery(rawDataQuery.toString(), null);
-
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
-            queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
+            queueCount = String.valueOf(countRows(db, table, token));
 
             final JSONArray arr = new JSONArray();
+            final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
+            final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
+            final BatchBudget budget = new BatchBudget(c, mDb.mConfig.getFlushBatchMaxBytes());
 
-            while (c.moveToNext()) {
-                if (c.isLast()) {
-                    final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                    last_id = c.getString(idColumnIndex);
-                }
+            while (c.moveToNext() && budget.fits()) {
+                last_id = c.getString(idColumnIndex);
                 try {
-                    final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
                     final JSONObject j = new JSONObject(c.getString(dataColumnIndex));
                     arr.put(j);
                 } catch (final JSONException e) {
@@ -660,13 +1126,10 @@ import com.mixpanel.android.util.MPLog;
             last_id = null;
             data = null;
         } finally {
-            mDb.close();
             if (c != null) {
                 c.close();
             }
-            if (queueCountCursor != null) {
-                queueCountCursor.close();
-            }
+            releaseDatabase();
         }
 
         if (last_id != null && data != null) {
@@ -676,6 +1139,120 @@ import com.mixpanel.android.util.MPLog;
         return null;
     }
 
+    /**
+     * Reads the next batch of records to send for a table and token, without parsing them.
+     * Each record is kept as the UTF-8 bytes stored in the database, so it can be streamed
+     * into the request body as is.
+     *
+     * @param table the table to read the records from
+     * @param token the token of the project you want to retrieve the records for
+     * @return the batch, or null if there is nothing to send or the records couldn't be read
+     */
+    /* package */ FlushBatch generateFlushBatch(Table table, String token) {
+        return generateFlushBatch(table, token, null);
+    }
+
+    /**
+     * Like {@link #generateFlushBatch(Table, String)}, but only reads rows after afterId.
+     *
+     * @param afterId the last ID of the batch in flight, or null to start from the oldest row
+     */
+    /* package */ FlushBatch generateFlushBatch(Table table, String token, String afterId) {
+        Cursor c = null;
+        FlushBatch batch = null;
+        final String tableName = table.getName();
+        final SQLiteDatabase db = mDb.getReadableDatabase();
+
+        try {
+            c = queryBatch(db, table, token, afterId);
+
+            final int queueCount = countRows(db, table, token);
+            final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
+            final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
+            final List<byte[]> records = new ArrayList<byte[]>(c.getCount());
+            final BatchBudget budget = new BatchBudget(c, mDb.mConfig.getFlushBatchMaxBytes());
+            String lastId = null;
+
+            while (c.moveToNext() && budget.fits()) {
+                lastId = c.getString(idColumnIndex);
+                final byte[] record = c.getBlob(dataColumnIndex);
+                // Everything we store is a JSON object, skip anything else like the parsing path does
+                if (record != null && record.length > 0 && record[0] == '{') {
+                    records.add(record);
+                }
+            }
+
+            if (lastId != null && !records.isEmpty()) {
+                batch = new FlushBatch(lastId, queueCount, records);
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
+            batch = null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
+        }
+
+        return batch;
+    }
+
+    /**
+     * Limits a batch to a number of payload bytes, using the record sizes stored at insert
+     * time so rows past the limit are never read. The size counted is that of the JSON array
+     * sent, before any Base64 or gzip encoding.
+     */
+    private static class BatchBudget {
+        BatchBudget(Cursor cursor, int maxBytes) {
+            mCursor = cursor;
+            mMaxBytes = maxBytes;
+            mSizeColumnIndex = cursor.getColumnIndex(KEY_DATA_SIZE) >= 0 ? cursor.getColumnIndex(KEY_DATA_SIZE) : DATA_SIZE_COLUMN_INDEX;
+            mBytes = 1; // The opening bracket
+        }
+
+        /**
+         * Whether the row under the cursor fits in the batch. The first row always fits,
+         * so a single oversized record can't hold up the queue.
+         */
+        boolean fits() {
+            if (mMaxBytes <= 0) {
+                return true;
+            }
+            // The record, followed by a comma or the closing bracket
+            mBytes += mCursor.getLong(mSizeColumnIndex) + 1;
+            final boolean fits = mRows == 0 || mBytes <= mMaxBytes;
+            if (fits) {
+                mRows++;
+            }
+            return fits;
+        }
+
+        private final Cursor mCursor;
+        private final int mMaxBytes;
+        private final int mSizeColumnIndex;
+        private long mBytes;
+        private int mRows;
+    }
+
+    /* package */ static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char ch = s.charAt(i);
+            if (ch < 0x80) {
+                length++;
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     /**
      * Returns true if this is a newly created database (the database file did not exist
      * before this adapter was initialized). Used to detect first app launch.
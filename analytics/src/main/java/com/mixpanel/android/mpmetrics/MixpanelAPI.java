@@ -42,6 +42,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.json.JSONArray;
@@ -207,7 +208,82 @@ public class MixpanelAPI implements FeatureFlagDelegate {
         }
 
         mTrackAutomaticEvents = trackAutomaticEvents;
+        mStartupTrace = new StartupTrace(mInstanceName != null ? mInstanceName : "MixpanelAPI");
 
+        mDeviceInfo = mStartupTrace.call("device info", this::readDeviceInfo);
+
+        mSessionMetadata = new SessionMetadata();
+        mMessages = mStartupTrace.call("messages", this::getAnalyticsMessages);
+
+        mPersistentIdentity = mStartupTrace.call("identity", () -> {
+            final PersistentIdentity identity =
+                    getPersistentIdentity(context, referrerPreferences, token, options.getInstanceName(), options.getDeviceIdProvider());
+            identity.preloadOptOutTracking(token, sPrefsLoader::execute);
+            return identity;
+        });
+        mEventTimings = mStartupTrace.call("time events", mPersistentIdentity::getTimeEvents);
+
+        // The flag manager stays in the core stage, track() hands it first time events
+        mFeatureFlagOptions = options.getFeatureFlagOptions();
+        mExcludeProperties = options.getExcludeProperties();
+        mStartupTrace.run("feature flags", () -> {
+            warnIfStrippingLibProperties(mExcludeProperties);
+            // Resolve the effective policy once at init: a persisting policy with non-positive TTL
+            // is collapsed to NetworkOnly, since "persist on every fetch but the TTL makes nothing
+            // ever serve" does no useful work. Logs a warning when the substitution happens.
+            final VariantLookupPolicy variantLookupPolicy =
+                    VariantLookupPolicy.effective(mFeatureFlagOptions.getVariantLookupPolicy());
+            // Always hand the persistence prefs to FeatureFlagManager: non-NetworkOnly policies use
+            // it to read/write, and NetworkOnly uses it on init to wipe any stale blob left over
+            // from a prior config. The blob lives in the existing stored prefs file so reset() —
+            // PersistentIdentity.clearPreferences() — also wipes it for free.
+            final Future<SharedPreferences> flagsCachePrefs = sPrefsLoader.loadPreferences(
+                    context,
+                    storedPrefsName(token, options.getInstanceName()),
+                    null);
+            mFeatureFlagManager =
+                    new FeatureFlagManager(
+                            this,
+                            getHttpService(),
+                            new FlagsConfig(
+                                    mFeatureFlagOptions.isEnabled(),
+                                    mFeatureFlagOptions.getContext(),
+                                    variantLookupPolicy),
+                            flagsCachePrefs);
+        });
+
+        mStartupTrace.run("options", () -> {
+            if (options.isOptOutTrackingDefault()
+                    && (mPersistentIdentity.loadOptOutTracking(token) || !mPersistentIdentity.hasOptOutFlag(token))) {
+                optOutTracking();
+            }
+
+            if (options.getSuperProperties() != null) {
+                registerSuperProperties(options.getSuperProperties());
+            }
+        });
+
+        mStartupTrace.run("lifecycle", () -> {
+            registerMixpanelActivityLifecycleCallbacks();
+            registerForegroundTracking();
+
+            if (!mConfig.getDisableExceptionHandler()) {
+                ExceptionHandler.init();
+            }
+        });
+
+        // Never deferred, so automatic events are queued ahead of anything the app tracks next
+        mStartupTrace.run("automatic events", this::trackStartupEvents);
+        mStartupTrace.log("initialization");
+
+        if (mConfig.getDeferredStartup()) {
+            runWhenIdle(this::runSecondaryStartup);
+        } else {
+            runSecondaryStartup();
+        }
+    }
+
+    private Map<String, String> readDeviceInfo() {
         final Map<String, String> deviceInfo = new HashMap<String, String>();
         deviceInfo.put("$android_lib_version", MPConfig.VERSION);
         deviceInfo.put("$android_os", "Android");
@@ -225,52 +301,10 @@ public class MixpanelAPI implements FeatureFlagDelegate {
         } catch (final PackageManager.NameNotFoundException e) {
             MPLog.e(LOGTAG, "Exception getting app version name", e);
         }
-        mDeviceInfo = Collections.unmodifiableMap(deviceInfo);
-
-        mSessionMetadata = new SessionMetadata();
-        mMessages = getAnalyticsMessages();
-        mPersistentIdentity =
-                getPersistentIdentity(context, referrerPreferences, token, options.getInstanceName(), options.getDeviceIdProvider());
-        mEventTimings = mPersistentIdentity.getTimeEvents();
-
-        mFeatureFlagOptions = options.getFeatureFlagOptions();
-        mExcludeProperties = options.getExcludeProperties();
-        warnIfStrippingLibProperties(mExcludeProperties);
-        // Resolve the effective policy once at init: a persisting policy with non-positive TTL
-        // is collapsed to NetworkOnly, since "persist on every fetch but the TTL makes nothing
-        // ever serve" does no useful work. Logs a warning when the substitution happens.
-        final VariantLookupPolicy variantLookupPolicy =
-                VariantLookupPolicy.effective(mFeatureFlagOptions.getVariantLookupPolicy());
-        // Always hand the persistence prefs to FeatureFlagManager: non-NetworkOnly policies use
-        // it to read/write, and NetworkOnly uses it on init to wipe any stale blob left over
-        // from a prior config. The blob lives in the existing stored prefs file so reset() —
-        // PersistentIdentity.clearPreferences() — also wipes it for free.
-        final Future<SharedPreferences> flagsCachePrefs = sPrefsLoader.loadPreferences(
-                context,
-                storedPrefsName(token, options.getInstanceName()),
-                null);
-        mFeatureFlagManager =
-                new FeatureFlagManager(
-                        this,
-                        getHttpService(),
-                        new FlagsConfig(
-                                mFeatureFlagOptions.isEnabled(),
-                                mFeatureFlagOptions.getContext(),
-                                variantLookupPolicy),
-                        flagsCachePrefs);
-
-        if (options.isOptOutTrackingDefault()
-                && (hasOptedOutTracking() || !mPersistentIdentity.hasOptOutFlag(token))) {
-            optOutTracking();
-        }
-
-        if (options.getSuperProperties() != null) {
-            registerSuperProperties(options.getSuperProperties());
-        }
-
-        registerMixpanelActivityLifecycleCallbacks();
-        registerForegroundTracking();
+        return Collections.unmodifiableMap(deviceInfo);
+    }
 
+    private void trackStartupEvents() {
         // Enqueue async check to determine if this is the first launch
         // If it is the first launch, the queue job sends FIRST_OPEN event and sets hasLaunched flag
         if (mTrackAutomaticEvents) {
@@ -281,34 +315,55 @@ public class MixpanelAPI implements FeatureFlagDelegate {
             track("$app_open", null);
         }
 
-        if (mPersistentIdentity.isNewVersion(deviceInfo.get("$android_app_version_code"))
+        if (mPersistentIdentity.isNewVersion(mDeviceInfo.get("$android_app_version_code"))
                 && mTrackAutomaticEvents) {
             try {
                 final JSONObject messageProps = new JSONObject();
-                messageProps.put(AutomaticEvents.VERSION_UPDATED, deviceInfo.get("$android_app_version"));
+                messageProps.put(AutomaticEvents.VERSION_UPDATED, mDeviceInfo.get("$android_app_version"));
                 track(AutomaticEvents.APP_UPDATED, messageProps, true);
             } catch (JSONException e) {
             }
         }
+    }
 
-        if (!mConfig.getDisableExceptionHandler()) {
-            ExceptionHandler.init();
-        }
-
+    /**
+     * Startup work that tracking doesn't depend on: legacy file cleanup and the Session Replay
+     * receiver. Runs at the end of the constructor, or once the main thread is idle if
+     * com.mixpanel.android.MPConfig.DeferredStartup is set.
+     */
+    private void runSecondaryStartup() {
         if (mConfig.getRemoveLegacyResidualFiles()) {
-            mMessages.removeResidualImageFiles(new File(mContext.getApplicationInfo().dataDir));
+            mStartupTrace.run("legacy cleanup", () ->
+                    mMessages.removeResidualImageFiles(new File(mContext.getApplicationInfo().dataDir)));
         }
 
         // Event tracking integration w/ Session Replay SDK requires Android 13 or higher.
         // It is also NOT supported in "Instant" apps
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
-                && !context.getPackageManager().isInstantApp()) {
-            BroadcastReceiver sessionReplayReceiver = new SessionReplayBroadcastReceiver(this);
-            ContextCompat.registerReceiver(
-                    mContext.getApplicationContext(),
-                    sessionReplayReceiver,
-                    SessionReplayBroadcastReceiver.INTENT_FILTER,
-                    ContextCompat.RECEIVER_NOT_EXPORTED);
+        mStartupTrace.run("session replay", () -> {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                    && !mContext.getPackageManager().isInstantApp()) {
+                BroadcastReceiver sessionReplayReceiver = new SessionReplayBroadcastReceiver(this);
+                ContextCompat.registerReceiver(
+                        mContext.getApplicationContext(),
+                        sessionReplayReceiver,
+                        SessionReplayBroadcastReceiver.INTENT_FILTER,
+                        ContextCompat.RECEIVER_NOT_EXPORTED);
+            }
+        });
+        mStartupTrace.log("secondary startup");
+    }
+
+    // Runs work when the main thread's queue next goes idle, so it stays out of Application.onCreate
+    private static void runWhenIdle(final Runnable work) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Looper.myQueue()
+                    .addIdleHandler(
+                            () -> {
+                                work.run();
+                                return false;
+                            });
+        } else {
+            new Handler(Looper.getMainLooper()).post(work);
         }
     }
 
@@ -612,20 +667,31 @@ public class MixpanelAPI implements FeatureFlagDelegate {
         if (null == token || null == context) {
             return null;
         }
-        synchronized (sInstanceMap) {
-            final Context appContext = context.getApplicationContext();
+        final Context appContext = context.getApplicationContext();
+        String instanceKey = options.getInstanceName() != null ? options.getInstanceName() : token;
+
+        // Instances are never removed, so one that is already there can be returned without locking
+        final Map<Context, MixpanelAPI> existingInstances = sInstanceMap.get(instanceKey);
+        if (null != existingInstances) {
+            final MixpanelAPI existing = existingInstances.get(appContext);
+            if (null != existing) {
+                checkIntentForInboundAppLink(context);
+                return existing;
+            }
+        }
 
+        MixpanelAPI instance;
+        synchronized (sInstanceMap) {
             if (null == sReferrerPrefs) {
                 sReferrerPrefs = sPrefsLoader.loadPreferences(context, MPConfig.REFERRER_PREFS_NAME, null);
             }
-            String instanceKey = options.getInstanceName() != null ? options.getInstanceName() : token;
             Map<Context, MixpanelAPI> instances = sInstanceMap.get(instanceKey);
             if (null == instances) {
-                instances = new HashMap<Context, MixpanelAPI>();
+                instances = new ConcurrentHashMap<Context, MixpanelAPI>();
                 sInstanceMap.put(instanceKey, instances);
             }
 
-            MixpanelAPI instance = instances.get(appContext);
+            instance = instances.get(appContext);
             if (null == instance && ConfigurationChecker.checkBasicConfiguration(appContext)) {
                 instance =
                         new MixpanelAPI(
@@ -638,11 +704,11 @@ public class MixpanelAPI implements FeatureFlagDelegate {
                 registerAppLinksListeners(context, instance);
                 instances.put(appContext, instance);
             }
+        }
 
-            checkIntentForInboundAppLink(context);
+        checkIntentForInboundAppLink(context);
 
-            return instance;
-        }
+        return instance;
     }
 
     /**
@@ -1011,6 +1077,24 @@ public class MixpanelAPI implements FeatureFlagDelegate {
         track(eventName, properties, false);
     }
 
+    /**
+     * Returns a builder for an event, to add typed properties to and then track. This avoids
+     * creating a JSONObject for the properties and boxing their primitive values on the calling
+     * thread.
+     *
+     * <pre>
+     * {@code
+     * mixpanel.event("Item Purchased").put("price", 4.99).put("quantity", 2).track();
+     * }
+     * </pre>
+     *
+     * @param eventName The name of the event to send
+     * @return a new {@link EventBuilder} for the event
+     */
+    public EventBuilder event(String eventName) {
+        return new EventBuilder(this, eventName);
+    }
+
     /**
      * Equivalent to {@link #track(String, JSONObject)} with a null argument for properties. Consider
      * adding properties to your tracking to get the best insights and experience from Mixpanel.
@@ -2319,11 +2403,16 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     }
 
     /* package */ void onBackground() {
+        flushPendingPreferenceWrites();
         if (mConfig.getFlushOnBackground()) {
             flush();
         }
     }
 
+    /* package */ void flushPendingPreferenceWrites() {
+        mPersistentIdentity.flushPendingWrites();
+    }
+
     /* package */ void onForeground() {
         mSessionMetadata.initSession();
     }
@@ -2375,11 +2464,11 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     }
 
     /* package */ static void allInstances(InstanceProcessor processor) {
-        synchronized (sInstanceMap) {
-            for (final Map<Context, MixpanelAPI> contextInstances : sInstanceMap.values()) {
-                for (final MixpanelAPI instance : contextInstances.values()) {
-                    processor.process(instance);
-                }
+        // Instances created while we iterate may or may not be visited, as before they
+        // would either have been created first or waited until we were done
+        for (final Map<Context, MixpanelAPI> contextInstances : sInstanceMap.values()) {
+            for (final MixpanelAPI instance : contextInstances.values()) {
+                processor.process(instance);
             }
         }
     }
@@ -2388,6 +2477,10 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     // Conveniences for testing. These methods should not be called by
     // non-test client code.
 
+    /* package */ StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
     /* package */ AnalyticsMessages getAnalyticsMessages() {
         return AnalyticsMessages.getInstance(mContext, mConfig);
     }
@@ -2436,7 +2529,12 @@ public class MixpanelAPI implements FeatureFlagDelegate {
                 sPrefsLoader.loadPreferences(context, mixpanelPrefsName, null);
 
         return new PersistentIdentity(
-                referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs, deviceIdProvider);
+                referrerPreferences,
+                storedPreferences,
+                timeEventsPrefs,
+                mixpanelPrefs,
+                deviceIdProvider,
+                mConfig.getPreferencesWriteDelay());
     }
 
     private static String storedPrefsName(String token, String instanceName) {
@@ -2720,12 +2818,13 @@ public class MixpanelAPI implements FeatureFlagDelegate {
 
         private JSONObject stdPeopleMessage(String actionType, Object properties) throws JSONException {
             final JSONObject dataObj = new JSONObject();
-            final String distinctId = getDistinctId(); // TODO ensure getDistinctId is thread safe
-            final String anonymousId = getAnonymousId();
+            final String distinctId = getDistinctId();
+            final PersistentIdentity.Identity identity = mPersistentIdentity.getIdentity();
+            final String anonymousId = identity.getAnonymousId();
             dataObj.put(actionType, properties);
             dataObj.put("$token", mToken);
             dataObj.put("$time", System.currentTimeMillis());
-            dataObj.put("$had_persisted_distinct_id", mPersistentIdentity.getHadPersistedDistinctId());
+            dataObj.put("$had_persisted_distinct_id", identity.getHadPersistedDistinctId());
             if (null != anonymousId) {
                 dataObj.put("$device_id", anonymousId);
             }
@@ -2890,6 +2989,19 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     } // GroupImpl
 
     protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+        track(eventName, properties, null, isAutomaticEvent);
+    }
+
+    /* package */ void trackTypedProperties(String eventName, TypedProperties properties) {
+        if (hasOptedOutTracking()) return;
+        track(eventName, null, properties, false);
+    }
+
+    private void track(
+            String eventName,
+            JSONObject properties,
+            TypedProperties typedProperties,
+            boolean isAutomaticEvent) {
         if (hasOptedOutTracking() || (isAutomaticEvent && !mTrackAutomaticEvents)) {
             return;
         }
@@ -2903,7 +3015,8 @@ public class MixpanelAPI implements FeatureFlagDelegate {
 
         try {
             final AnalyticsMessages.EventDescription eventDescription =
-                    buildEventDescription(eventName, properties, isAutomaticEvent, eventBegin);
+                    buildEventDescription(
+                            eventName, properties, typedProperties, isAutomaticEvent, eventBegin);
             mMessages.eventsMessage(eventDescription);
             // Post first-time event check directly to the FeatureFlagManager handler
             // thread from the calling thread, rather than routing through the
@@ -2911,8 +3024,12 @@ public class MixpanelAPI implements FeatureFlagDelegate {
             // are called sequentially on the same thread, the check is queued on the
             // handler before getVariant's lookup.
             if (mFeatureFlagManager != null) {
-                mFeatureFlagManager.checkFirstTimeEvent(
-                        eventName, eventDescription.getProperties());
+                if (typedProperties == null && !eventDescription.isDeferred()) {
+                    mFeatureFlagManager.checkFirstTimeEvent(
+                            eventName, eventDescription.getProperties());
+                } else {
+                    mFeatureFlagManager.checkFirstTimeEvent(eventDescription);
+                }
             }
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
@@ -2926,57 +3043,36 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     private AnalyticsMessages.EventDescription buildEventDescription(
             String eventName,
             JSONObject properties,
+            TypedProperties typedProperties,
             boolean isAutomaticEvent,
             Long eventBegin) throws JSONException {
-        final JSONObject messageProps = new JSONObject();
-
-        final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-        for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-            final String key = entry.getKey();
-            final String value = entry.getValue();
-            messageProps.put(key, value);
-        }
-
-        mPersistentIdentity.addSuperPropertiesToObject(messageProps);
-
-        // Don't allow super properties or referral properties to override these fields,
-        // but DO allow the caller to override them in their given properties.
-        final double timeSecondsDouble = System.currentTimeMillis() / 1000.0;
-        final String distinctId = getDistinctId();
-        final String anonymousId = getAnonymousId();
-        final String userId = getUserId();
-        messageProps.put("time", System.currentTimeMillis());
-        messageProps.put("distinct_id", distinctId);
-        messageProps.put(
-                "$had_persisted_distinct_id", mPersistentIdentity.getHadPersistedDistinctId());
-        if (anonymousId != null) {
-            messageProps.put("$device_id", anonymousId);
-        }
-        if (userId != null) {
-            messageProps.put("$user_id", userId);
-        }
-
-        if (null != eventBegin) {
-            final double eventBeginDouble = ((double) eventBegin) / 1000.0;
-            final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
-            messageProps.put("$duration", secondsElapsed);
-        }
-
-        if (null != properties) {
-            final Iterator<?> propIter = properties.keys();
-            while (propIter.hasNext()) {
-                final String key = (String) propIter.next();
-                messageProps.put(key, properties.opt(key));
-            }
-        }
-
+        final EventSnapshot snapshot =
+                new EventSnapshot(
+                        mPersistentIdentity.getBaseProperties(),
+                        mPersistentIdentity.getIdentity(),
+                        System.currentTimeMillis(),
+                        eventBegin,
+                        properties);
+        if (mConfig.getDeferEventMaterialization()) {
+            return new AnalyticsMessages.EventDescription(
+                    eventName,
+                    snapshot,
+                    mToken,
+                    isAutomaticEvent,
+                    mSessionMetadata.getMetadataForEvent(),
+                    mExcludeProperties,
+                    typedProperties);
+        }
+
+        final JSONObject messageProps = snapshot.materialize();
         return new AnalyticsMessages.EventDescription(
                 eventName,
                 messageProps,
                 mToken,
                 isAutomaticEvent,
                 mSessionMetadata.getMetadataForEvent(),
-                mExcludeProperties);
+                mExcludeProperties,
+                typedProperties);
     }
 
     private void recordPeopleMessage(JSONObject message) {
@@ -3000,7 +3096,7 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     private void enqueueFirstLaunchCheck() {
         try {
             final AnalyticsMessages.EventDescription eventDescription =
-                    buildEventDescription(AutomaticEvents.FIRST_OPEN, null, true, null);
+                    buildEventDescription(AutomaticEvents.FIRST_OPEN, null, null, true, null);
 
             final AnalyticsMessages.FirstLaunchDescription firstLaunchDescription =
                     new AnalyticsMessages.FirstLaunchDescription(
@@ -3077,16 +3173,41 @@ public class MixpanelAPI implements FeatureFlagDelegate {
         }
     }
 
+    // The Bolts lookup is done once per process, getInstance may be called for every Activity.
+    // It takes no lock: threads racing on the first call each look it up and find the same method.
+    private static Method getTargetUrlFromInboundIntentMethod() {
+        if (sAppLinksLookedUp) {
+            return sGetTargetUrlFromInboundIntent;
+        }
+        Method method = null;
+        try {
+            final Class<?> clazz = Class.forName("bolts.AppLinks");
+            method = clazz.getMethod("getTargetUrlFromInboundIntent", Context.class, Intent.class);
+        } catch (final ClassNotFoundException e) {
+            MPLog.d(
+                    APP_LINKS_LOGTAG,
+                    "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
+        } catch (final NoSuchMethodException e) {
+            MPLog.d(
+                    APP_LINKS_LOGTAG,
+                    "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
+        }
+        sGetTargetUrlFromInboundIntent = method;
+        sAppLinksLookedUp = true;
+        return method;
+    }
+
     private static void checkIntentForInboundAppLink(Context context) {
         // call the Bolts getTargetUrlFromInboundIntent method simply for a side effect
         // if the intent is the result of an App Link, it'll trigger al_nav_in
         // https://github.com/BoltsFramework/Bolts-Android/blob/1.1.2/Bolts/src/bolts/AppLinks.java#L86
         if (context instanceof Activity) {
+            final Method getTargetUrlFromInboundIntent = getTargetUrlFromInboundIntentMethod();
+            if (null == getTargetUrlFromInboundIntent) {
+                return;
+            }
             try {
-                final Class<?> clazz = Class.forName("bolts.AppLinks");
                 final Intent intent = ((Activity) context).getIntent();
-                final Method getTargetUrlFromInboundIntent =
-                        clazz.getMethod("getTargetUrlFromInboundIntent", Context.class, Intent.class);
                 getTargetUrlFromInboundIntent.invoke(null, context, intent);
             } catch (final InvocationTargetException e) {
                 MPLog.d(
@@ -3094,14 +3215,6 @@ public class MixpanelAPI implements FeatureFlagDelegate {
                         "Failed to invoke bolts.AppLinks.getTargetUrlFromInboundIntent() -- Unable to detect"
                                 + " inbound App Links",
                         e);
-            } catch (final ClassNotFoundException e) {
-                MPLog.d(
-                        APP_LINKS_LOGTAG,
-                        "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
-            } catch (final NoSuchMethodException e) {
-                MPLog.d(
-                        APP_LINKS_LOGTAG,
-                        "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
             } catch (final IllegalAccessException e) {
                 MPLog.d(APP_LINKS_LOGTAG, "Unable to detect inbound App Links: " + e.getMessage());
             }
@@ -3119,7 +3232,7 @@ public class MixpanelAPI implements FeatureFlagDelegate {
 
     RemoteService getHttpService() {
         if (this.mHttpService == null) {
-            this.mHttpService = new HttpService(false, null);
+            this.mHttpService = mConfig.makeRemoteService(new HttpService(false, null));
         }
         return this.mHttpService;
     }
@@ -3138,6 +3251,7 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     private final Map<String, Long> mEventTimings;
     private MixpanelActivityLifecycleCallbacks mMixpanelActivityLifecycleCallbacks;
     private final SessionMetadata mSessionMetadata;
+    private final StartupTrace mStartupTrace;
     private final FeatureFlagOptions mFeatureFlagOptions;
     private final Set<String> mExcludeProperties;
     private FeatureFlagManager mFeatureFlagManager;
@@ -3147,11 +3261,14 @@ public class MixpanelAPI implements FeatureFlagDelegate {
     // Flag to track if initial feature flags load has been initiated
     private final AtomicBoolean mInitialFeatureFlagLoad = new AtomicBoolean(false);
 
-    // Maps each token to a singleton MixpanelAPI instance
+    // Maps each token to a singleton MixpanelAPI instance. Read without locking, written while
+    // holding the map's monitor.
     private static final Map<String, Map<Context, MixpanelAPI>> sInstanceMap =
-            new HashMap<String, Map<Context, MixpanelAPI>>();
+            new ConcurrentHashMap<String, Map<Context, MixpanelAPI>>();
     private static final SharedPreferencesLoader sPrefsLoader = new SharedPreferencesLoader();
     private static Future<SharedPreferences> sReferrerPrefs;
+    private static volatile boolean sAppLinksLookedUp;
+    private static Method sGetTargetUrlFromInboundIntent; // Published by sAppLinksLookedUp
 
     private static final String LOGTAG = "MixpanelAPI.API";
     private static final String APP_LINKS_LOGTAG = "MixpanelAPI.AL";
@@ -1,10 +1,13 @@
 package com.mixpanel.android.mpmetrics;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 
 import org.json.JSONException;
@@ -39,14 +42,19 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences, DeviceIdProvider deviceIdProvider) {
+        this(referrerPreferences, storedPreferences, timeEventsPreferences, mixpanelPreferences, deviceIdProvider, 0);
+    }
+
+    public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences, DeviceIdProvider deviceIdProvider, long writeDelayMillis) {
         mLoadReferrerPreferences = referrerPreferences;
         mLoadStoredPreferences = storedPreferences;
         mTimeEventsPreferences = timeEventsPreferences;
         mMixpanelPreferences = mixpanelPreferences;
         mDeviceIdProvider = deviceIdProvider;
+        mWriter = new PreferencesWriter(writeDelayMillis);
         mSuperPropertiesCache = null;
         mReferrerPropertiesCache = null;
-        mIdentitiesLoaded = false;
+        mIdentity = Identity.UNLOADED;
         mReferrerChangeListener = (sharedPreferences, key) -> {
             synchronized (sReferrerPrefsLock) {
                 readReferrerProperties();
@@ -60,21 +68,33 @@ import com.mixpanel.android.util.MPLog;
 
     // Super properties
     public void addSuperPropertiesToObject(JSONObject ob) {
-        synchronized (mSuperPropsLock) {
-            final JSONObject superProperties = this.getSuperPropertiesCache();
-            final Iterator<?> superIter = superProperties.keys();
-            while (superIter.hasNext()) {
-                final String key = (String) superIter.next();
-
-                try {
-                    ob.put(key, superProperties.get(key));
-                } catch (JSONException e) {
-                    MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
-                }
+        for (final Map.Entry<String, Object> entry : getSuperPropertiesSnapshot().entrySet()) {
+            try {
+                ob.put(entry.getKey(), entry.getValue());
+            } catch (JSONException e) {
+                MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
             }
         }
     }
 
+    /**
+     * Returns the referrer properties overlaid with the super properties, the properties every
+     * event starts from. The map is immutable and is only rebuilt after one of its sources changes,
+     * so seeding an event costs a single copy and no locking.
+     */
+    /* package */ Map<String, Object> getBaseProperties() {
+        final Map<String, String> referrerProperties = getReferrerProperties();
+        final Map<String, Object> superProperties = getSuperPropertiesSnapshot();
+        BaseProperties base = mBaseProperties;
+        if (base == null
+                || base.mReferrerProperties != referrerProperties
+                || base.mSuperProperties != superProperties) {
+            base = new BaseProperties(referrerProperties, superProperties);
+            mBaseProperties = base;
+        }
+        return base.mMerged;
+    }
+
     public void updateSuperProperties(SuperPropertyUpdate updates) {
         synchronized (mSuperPropsLock) {
             final JSONObject oldPropCache = getSuperPropertiesCache();
@@ -156,13 +176,17 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public Map<String, String> getReferrerProperties() {
+        final Map<String, String> referrerProperties = mReferrerPropertiesCache;
+        if (!sReferrerPrefsDirty && null != referrerProperties) {
+            return referrerProperties;
+        }
         synchronized (sReferrerPrefsLock) {
             if (sReferrerPrefsDirty || null == mReferrerPropertiesCache) {
                 readReferrerProperties();
                 sReferrerPrefsDirty = false;
             }
+            return mReferrerPropertiesCache;
         }
-        return mReferrerPropertiesCache;
     }
 
     public void clearReferrerProperties() {
@@ -180,77 +204,91 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
-    public synchronized String getAnonymousId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+    /**
+     * Returns the current identity and opt-out state as one consistent, immutable snapshot.
+     * Callers that need several fields together, like track(), should read them all from
+     * a single snapshot. Only the first call, before the stored identities are loaded, locks.
+     */
+    /* package */ Identity getIdentity() {
+        final Identity identity = mIdentity;
+        if (identity.mLoaded) {
+            return identity;
         }
-        return mAnonymousId;
+        return loadIdentity();
     }
 
-    public synchronized boolean getHadPersistedDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        return mHadPersistedDistinctId;
+    public String getAnonymousId() {
+        return getIdentity().getAnonymousId();
     }
 
-    public synchronized String getEventsDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        return mEventsDistinctId;
+    public boolean getHadPersistedDistinctId() {
+        return getIdentity().getHadPersistedDistinctId();
     }
 
-    public synchronized String getEventsUserId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        if(mEventsUserIdPresent) {
-            return mEventsDistinctId;
-        }
-        return null;
+    public String getEventsDistinctId() {
+        return getIdentity().getEventsDistinctId();
+    }
+
+    public String getEventsUserId() {
+        return getIdentity().getEventsUserId();
     }
 
     public synchronized void setAnonymousIdIfAbsent(String anonymousId) {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        if (mAnonymousId != null) {
+        final Identity identity = loadIdentity();
+        if (identity.mAnonymousId != null) {
             return;
         }
-        mAnonymousId = anonymousId;
-        mHadPersistedDistinctId = true;
+        mIdentity = new Identity(
+                identity.mLoaded,
+                identity.mEventsDistinctId,
+                identity.mEventsUserIdPresent,
+                identity.mPeopleDistinctId,
+                anonymousId,
+                true,
+                identity.mOptOutTracking);
         writeIdentities();
     }
 
     public synchronized void setEventsDistinctId(String eventsDistinctId) {
-        if(!mIdentitiesLoaded) {
-            readIdentities();
-        }
-        mEventsDistinctId = eventsDistinctId;
+        final Identity identity = loadIdentity();
+        mIdentity = new Identity(
+                identity.mLoaded,
+                eventsDistinctId,
+                identity.mEventsUserIdPresent,
+                identity.mPeopleDistinctId,
+                identity.mAnonymousId,
+                identity.mHadPersistedDistinctId,
+                identity.mOptOutTracking);
         writeIdentities();
     }
 
     public synchronized void markEventsUserIdPresent() {
-        if(!mIdentitiesLoaded) {
-            readIdentities();
-        }
-        mEventsUserIdPresent = true;
+        final Identity identity = loadIdentity();
+        mIdentity = new Identity(
+                identity.mLoaded,
+                identity.mEventsDistinctId,
+                true,
+                identity.mPeopleDistinctId,
+                identity.mAnonymousId,
+                identity.mHadPersistedDistinctId,
+                identity.mOptOutTracking);
         writeIdentities();
     }
 
-    public synchronized String getPeopleDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        return mPeopleDistinctId;
+    public String getPeopleDistinctId() {
+        return getIdentity().getPeopleDistinctId();
     }
 
     public synchronized void setPeopleDistinctId(String peopleDistinctId) {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        mPeopleDistinctId = peopleDistinctId;
+        final Identity identity = loadIdentity();
+        mIdentity = new Identity(
+                identity.mLoaded,
+                identity.mEventsDistinctId,
+                identity.mEventsUserIdPresent,
+                peopleDistinctId,
+                identity.mAnonymousId,
+                identity.mHadPersistedDistinctId,
+                identity.mOptOutTracking);
         writeIdentities();
     }
 
@@ -259,6 +297,8 @@ import com.mixpanel.android.util.MPLog;
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
 
+        // Pending writes must not land after the clear
+        mWriter.flush();
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final SharedPreferences.Editor prefsEdit = prefs.edit();
@@ -271,7 +311,18 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
+    /**
+     * Writes any super property and identity changes still waiting to be persisted, and waits
+     * for them to reach the disk.
+     */
+    public void flushPendingWrites() {
+        mWriter.flush();
+    }
+
     public void clearTimedEvents() {
+        if (isTimeEventsCacheEmpty()) {
+            return;
+        }
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
             final SharedPreferences.Editor editor = prefs.edit();
@@ -345,6 +396,13 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
+    // The cache mirrors the stored time events once loaded, until then assume there may be some
+    private boolean isTimeEventsCacheEmpty() {
+        synchronized (mTimeEventsCacheLock) {
+            return mTimeEventsCache != null && mTimeEventsCache.isEmpty();
+        }
+    }
+
     // Method to explicitly preload the cache
     public void preloadTimeEventsAsync() {
         synchronized (mTimeEventsCacheLock) {
@@ -359,6 +417,12 @@ import com.mixpanel.android.util.MPLog;
 
     // access is synchronized outside (mEventTimings)
     public void removeTimedEvent(String timeEventName) {
+        // Most tracked events were never timed, so only touch the file when there is something to remove
+        synchronized (mTimeEventsCacheLock) {
+            if (mTimeEventsCache != null && !mTimeEventsCache.containsKey(timeEventName)) {
+                return;
+            }
+        }
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
             final SharedPreferences.Editor editor = prefs.edit();
@@ -466,23 +530,116 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void setOptOutTracking(boolean optOutTracking, String token) {
-        mIsUserOptOut = optOutTracking;
-        writeOptOutFlag(token);
+        mIdentity = mIdentity.withOptOutTracking(optOutTracking);
+        writeOptOutFlag(token, optOutTracking);
     }
 
-    public synchronized boolean getOptOutTracking(String token) {
-        if (mIsUserOptOut == null) {
-            readOptOutFlag(token);
-            if (mIsUserOptOut == null) {
-                mIsUserOptOut = false;
-            }
+    public boolean getOptOutTracking(String token) {
+        final Boolean optOutTracking = mIdentity.mOptOutTracking;
+        if (optOutTracking != null) {
+            return optOutTracking;
+        }
+        // Not known yet, so wait for it: guessing could send events for a user who opted out
+        return loadOptOutTracking(token);
+    }
+
+    /**
+     * Reads the opt-out flag for token on executor, so it's usually loaded before the first call
+     * to getOptOutTracking. A call made before the read finishes still waits for the stored flag.
+     */
+    /* package */ void preloadOptOutTracking(final String token, Executor executor) {
+        executor.execute(() -> loadOptOutTracking(token));
+    }
+
+    /**
+     * An immutable view of the identity and opt-out state. A new snapshot is published every time
+     * any of it changes, so readers never see a half-applied identify(), alias() or reset().
+     */
+    /* package */ static final class Identity {
+        private Identity(
+                boolean loaded,
+                String eventsDistinctId,
+                boolean eventsUserIdPresent,
+                String peopleDistinctId,
+                String anonymousId,
+                boolean hadPersistedDistinctId,
+                Boolean optOutTracking) {
+            mLoaded = loaded;
+            mEventsDistinctId = eventsDistinctId;
+            mEventsUserIdPresent = eventsUserIdPresent;
+            mPeopleDistinctId = peopleDistinctId;
+            mAnonymousId = anonymousId;
+            mHadPersistedDistinctId = hadPersistedDistinctId;
+            mOptOutTracking = optOutTracking;
+        }
+
+        public String getEventsDistinctId() {
+            return mEventsDistinctId;
+        }
+
+        public String getEventsUserId() {
+            return mEventsUserIdPresent ? mEventsDistinctId : null;
+        }
+
+        public String getPeopleDistinctId() {
+            return mPeopleDistinctId;
+        }
+
+        public String getAnonymousId() {
+            return mAnonymousId;
         }
 
-        return mIsUserOptOut;
+        public boolean getHadPersistedDistinctId() {
+            return mHadPersistedDistinctId;
+        }
+
+        private Identity withOptOutTracking(Boolean optOutTracking) {
+            return new Identity(
+                    mLoaded,
+                    mEventsDistinctId,
+                    mEventsUserIdPresent,
+                    mPeopleDistinctId,
+                    mAnonymousId,
+                    mHadPersistedDistinctId,
+                    optOutTracking);
+        }
+
+        private final boolean mLoaded;
+        private final String mEventsDistinctId;
+        private final boolean mEventsUserIdPresent;
+        private final String mPeopleDistinctId;
+        private final String mAnonymousId;
+        private final boolean mHadPersistedDistinctId;
+        // Null until the stored flag has been read
+        private final Boolean mOptOutTracking;
+
+        private static final Identity UNLOADED = new Identity(false, null, false, null, null, false, null);
     }
 
     //////////////////////////////////////////////////
 
+    private Map<String, Object> getSuperPropertiesSnapshot() {
+        final Map<String, Object> snapshot = mSuperPropertiesSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (mSuperPropsLock) {
+            getSuperPropertiesCache();
+            return mSuperPropertiesSnapshot;
+        }
+    }
+
+    // Must be called whenever mSuperPropertiesCache changes, while still holding the lock
+    private void publishSuperProperties() {
+        final Map<String, Object> snapshot = new LinkedHashMap<>();
+        final Iterator<String> keys = mSuperPropertiesCache.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            snapshot.put(key, mSuperPropertiesCache.opt(key));
+        }
+        mSuperPropertiesSnapshot = Collections.unmodifiableMap(snapshot);
+    }
+
     // Must be called from a synchronized setting
     private JSONObject getSuperPropertiesCache() {
         if (mSuperPropertiesCache == null) {
@@ -509,12 +666,13 @@ import com.mixpanel.android.util.MPLog;
             if (mSuperPropertiesCache == null) {
                 mSuperPropertiesCache = new JSONObject();
             }
+            publishSuperProperties();
         }
     }
 
     // All access should be synchronized on this
     private void readReferrerProperties() {
-        mReferrerPropertiesCache = new HashMap<>();
+        final Map<String, String> referrerProperties = new HashMap<>();
 
         try {
             final SharedPreferences referrerPrefs = mLoadReferrerPreferences.get();
@@ -525,13 +683,14 @@ import com.mixpanel.android.util.MPLog;
             for (final Map.Entry<String, ?> entry : prefsMap.entrySet()) {
                 final String prefsName = entry.getKey();
                 final Object prefsVal = entry.getValue();
-                mReferrerPropertiesCache.put(prefsName, prefsVal.toString());
+                referrerProperties.put(prefsName, prefsVal.toString());
             }
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e);
         }
+        mReferrerPropertiesCache = Collections.unmodifiableMap(referrerProperties);
     }
 
     // All access should be synchronized on this
@@ -541,14 +700,20 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        final String props = mSuperPropertiesCache.toString();
+        publishSuperProperties();
+        mWriter.schedule("super_properties", this::writeSuperProperties);
+    }
+
+    // Serializes the published snapshot, so it needs no lock and may run on any thread
+    private void writeSuperProperties(boolean synchronous) {
+        final String props = new JSONObject(mSuperPropertiesSnapshot).toString();
         MPLog.v(LOGTAG, "Storing Super Properties " + props);
 
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final SharedPreferences.Editor editor = prefs.edit();
             editor.putString("super_properties", props);
-            writeEdits(editor);
+            writeEdits(editor, synchronous);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot store superProperties in shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -578,6 +743,13 @@ import com.mixpanel.android.util.MPLog;
         return UUID.randomUUID().toString();
     }
 
+    private synchronized Identity loadIdentity() {
+        if (!mIdentity.mLoaded) {
+            readIdentities();
+        }
+        return mIdentity;
+    }
+
     // All access should be synchronized on this
     private void readIdentities() {
         SharedPreferences prefs = null;
@@ -593,11 +765,11 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        mEventsDistinctId = prefs.getString("events_distinct_id", null);
-        mEventsUserIdPresent = prefs.getBoolean("events_user_id_present", false);
-        mPeopleDistinctId = prefs.getString("people_distinct_id", null);
-        mAnonymousId = prefs.getString("anonymous_id", null);
-        mHadPersistedDistinctId = prefs.getBoolean("had_persisted_distinct_id", false);
+        String eventsDistinctId = prefs.getString("events_distinct_id", null);
+        boolean eventsUserIdPresent = prefs.getBoolean("events_user_id_present", false);
+        final String peopleDistinctId = prefs.getString("people_distinct_id", null);
+        String anonymousId = prefs.getString("anonymous_id", null);
+        final boolean hadPersistedDistinctId = prefs.getBoolean("had_persisted_distinct_id", false);
 
         // Get provider value once (if provider exists) to avoid calling provider multiple times
         String providerDeviceId = null;
@@ -605,25 +777,53 @@ import com.mixpanel.android.util.MPLog;
             providerDeviceId = generateDeviceId();
         }
 
-        if (mEventsDistinctId == null) {
+        boolean generated = false;
+        if (eventsDistinctId == null) {
             // No persisted identity - use provider value or generate UUID
-            mAnonymousId = (providerDeviceId != null) ? providerDeviceId : UUID.randomUUID().toString();
-            mEventsDistinctId = "$device:" + mAnonymousId;
-            mEventsUserIdPresent = false;
-            writeIdentities();
-        } else if (providerDeviceId != null && mAnonymousId != null && !mAnonymousId.isEmpty()) {
+            anonymousId = (providerDeviceId != null) ? providerDeviceId : UUID.randomUUID().toString();
+            eventsDistinctId = "$device:" + anonymousId;
+            eventsUserIdPresent = false;
+            generated = true;
+        } else if (providerDeviceId != null && anonymousId != null && !anonymousId.isEmpty()) {
             // Persisted identity exists - check for provider mismatch (using cached value)
-            if (!providerDeviceId.equals(mAnonymousId)) {
+            if (!providerDeviceId.equals(anonymousId)) {
                 MPLog.e(LOGTAG,
                         "deviceIdProvider returned '" + providerDeviceId + "' but existing anonymousId is '" +
-                        mAnonymousId + "'. Using persisted value to preserve identity continuity. " +
+                        anonymousId + "'. Using persisted value to preserve identity continuity. " +
                         "If you intended to change the device ID, call reset() after initialization.");
             }
         }
-        mIdentitiesLoaded = true;
+        mIdentity = new Identity(
+                true,
+                eventsDistinctId,
+                eventsUserIdPresent,
+                peopleDistinctId,
+                anonymousId,
+                hadPersistedDistinctId,
+                mIdentity.mOptOutTracking);
+        if (generated) {
+            writeIdentities();
+        }
     }
 
-    private void readOptOutFlag(String token) {
+    // Blocks until the flag has been read. The read happens outside the lock, and a flag set while it was running wins
+    /* package */ boolean loadOptOutTracking(String token) {
+        final Boolean loaded = mIdentity.mOptOutTracking;
+        if (loaded != null) {
+            return loaded;
+        }
+        final Boolean stored = readOptOutFlag(token);
+        synchronized (this) {
+            Boolean optOutTracking = mIdentity.mOptOutTracking;
+            if (optOutTracking == null) {
+                optOutTracking = stored == null ? false : stored;
+                mIdentity = mIdentity.withOptOutTracking(optOutTracking);
+            }
+            return optOutTracking;
+        }
+    }
+
+    private Boolean readOptOutFlag(String token) {
         SharedPreferences prefs = null;
         try {
             prefs = mMixpanelPreferences.get();
@@ -634,16 +834,16 @@ import com.mixpanel.android.util.MPLog;
         }
 
         if (prefs == null) {
-            return;
+            return null;
         }
-        mIsUserOptOut = prefs.getBoolean("opt_out_" + token, false);
+        return prefs.getBoolean("opt_out_" + token, false);
     }
 
-    private void writeOptOutFlag(String token) {
+    private void writeOptOutFlag(String token, boolean optOutTracking) {
         try {
             final SharedPreferences prefs = mMixpanelPreferences.get();
             final SharedPreferences.Editor prefsEditor = prefs.edit();
-            prefsEditor.putBoolean("opt_out_" + token, mIsUserOptOut);
+            prefsEditor.putBoolean("opt_out_" + token, optOutTracking);
             writeEdits(prefsEditor);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Can't write opt-out shared preferences.", e.getCause());
@@ -678,16 +878,22 @@ import com.mixpanel.android.util.MPLog;
     }
     // All access should be synchronized on this
     private void writeIdentities() {
+        mWriter.schedule("identities", this::writeIdentities);
+    }
+
+    // Writes the published snapshot, so it needs no lock and may run on any thread
+    private void writeIdentities(boolean synchronous) {
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final SharedPreferences.Editor prefsEditor = prefs.edit();
-
-            prefsEditor.putString("events_distinct_id", mEventsDistinctId);
-            prefsEditor.putBoolean("events_user_id_present", mEventsUserIdPresent);
-            prefsEditor.putString("people_distinct_id", mPeopleDistinctId);
-            prefsEditor.putString("anonymous_id", mAnonymousId);
-            prefsEditor.putBoolean("had_persisted_distinct_id", mHadPersistedDistinctId);
-            writeEdits(prefsEditor);
+            final Identity identity = mIdentity;
+
+            prefsEditor.putString("events_distinct_id", identity.mEventsDistinctId);
+            prefsEditor.putBoolean("events_user_id_present", identity.mEventsUserIdPresent);
+            prefsEditor.putString("people_distinct_id", identity.mPeopleDistinctId);
+            prefsEditor.putString("anonymous_id", identity.mAnonymousId);
+            prefsEditor.putBoolean("had_persisted_distinct_id", identity.mHadPersistedDistinctId);
+            writeEdits(prefsEditor, synchronous);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Can't write distinct ids to shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -699,22 +905,44 @@ import com.mixpanel.android.util.MPLog;
         editor.apply();
     }
 
+    private static void writeEdits(final SharedPreferences.Editor editor, boolean synchronous) {
+        if (synchronous) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    // The merged event properties, along with the snapshots they were built from
+    private static final class BaseProperties {
+        BaseProperties(Map<String, String> referrerProperties, Map<String, Object> superProperties) {
+            mReferrerProperties = referrerProperties;
+            mSuperProperties = superProperties;
+            final Map<String, Object> merged = new HashMap<>(referrerProperties);
+            merged.putAll(superProperties);
+            mMerged = Collections.unmodifiableMap(merged);
+        }
+
+        final Map<String, String> mReferrerProperties;
+        final Map<String, Object> mSuperProperties;
+        final Map<String, Object> mMerged;
+    }
+
     private final Future<SharedPreferences> mLoadStoredPreferences;
     private final Future<SharedPreferences> mLoadReferrerPreferences;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
     private final DeviceIdProvider mDeviceIdProvider;
+    private final PreferencesWriter mWriter;
     private JSONObject mSuperPropertiesCache;
+    // Immutable copies of the caches above, replaced on every change and read without locking
+    private volatile Map<String, Object> mSuperPropertiesSnapshot;
+    private volatile Map<String, String> mReferrerPropertiesCache;
+    private volatile BaseProperties mBaseProperties;
     private final Object mSuperPropsLock = new Object();
-    private Map<String, String> mReferrerPropertiesCache;
-    private boolean mIdentitiesLoaded;
-    private String mEventsDistinctId;
-    private boolean mEventsUserIdPresent;
-    private String mPeopleDistinctId;
-    private String mAnonymousId;
-    private boolean mHadPersistedDistinctId;
-    private Boolean mIsUserOptOut;
+    // Replaced, never mutated, under the lock on this; read without locking
+    private volatile Identity mIdentity;
     private static Integer sPreviousVersionCode;
     private static Boolean sIsFirstAppLaunch;
 
@@ -723,7 +951,7 @@ import com.mixpanel.android.util.MPLog;
     private final Object mTimeEventsCacheLock = new Object();
     private boolean mTimeEventsCacheLoading = false;
 
-    private static boolean sReferrerPrefsDirty = true;
+    private static volatile boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
     private static final String LOGTAG = "MixpanelAPI.PIdentity";
 }
@@ -0,0 +1,107 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces SharedPreferences writes that would otherwise be made on every change.
+ *
+ * <p>Each write is scheduled under a key. A write scheduled again before it has run replaces the
+ * pending one, so a burst of changes turns into a single write, made on a shared background
+ * thread once the delay has passed. Writes read the state they persist when they run, not when
+ * they are scheduled. With a delay of zero or less, writes are made immediately on the caller.
+ *
+ * <p>{@link #flush()} makes any pending writes on the calling thread, synchronously.
+ */
+/* package */ class PreferencesWriter {
+
+    /* package */ interface Write {
+        /**
+         * @param synchronous true if the write must reach the disk before returning
+         */
+        void write(boolean synchronous);
+    }
+
+    /* package */ PreferencesWriter(long delayMillis) {
+        mDelayMillis = delayMillis;
+        mPending = new LinkedHashMap<>();
+    }
+
+    /**
+     * Schedules a write, replacing any write still pending under the same key.
+     */
+    /* package */ void schedule(String key, Write write) {
+        if (mDelayMillis <= 0) {
+            synchronized (mWriteLock) {
+                write.write(false);
+            }
+            return;
+        }
+
+        synchronized (mPending) {
+            mPending.put(key, write);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                writePending(false);
+            }
+        }, mDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes every pending write now, on the calling thread, and waits for them to reach the disk.
+     */
+    /* package */ void flush() {
+        writePending(true);
+    }
+
+    /* package */ boolean hasPendingWrites() {
+        synchronized (mPending) {
+            return !mPending.isEmpty();
+        }
+    }
+
+    private void writePending(boolean synchronous) {
+        // Holding the write lock throughout keeps a flush from overtaking a scheduled run
+        synchronized (mWriteLock) {
+            final List<Write> writes;
+            synchronized (mPending) {
+                writes = new ArrayList<>(mPending.values());
+                mPending.clear();
+                mScheduled = false;
+            }
+            for (final Write write : writes) {
+                write.write(synchronous);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "com.mixpanel.android.PreferencesWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    private final long mDelayMillis;
+    private final Map<String, Write> mPending;
+    private final Object mWriteLock = new Object();
+    private boolean mScheduled;
+
+    private static ScheduledExecutorService sExecutor;
+}
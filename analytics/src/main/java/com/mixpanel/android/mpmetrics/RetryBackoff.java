@@ -0,0 +1,61 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.Random;
+
+/**
+ * Picks the delay before the worker retries a failed flush, when retries are scheduled on the
+ * worker instead of slept through in HttpService. The worker's count of consecutive failures is
+ * the one retry budget: the first few retries come quickly, covering what HttpService's own
+ * attempts used to, and later ones back off exponentially to a cap.
+ *
+ * <p>Delays use full jitter, a random time between zero and the backoff, so devices that lost
+ * the network together don't all retry together. A server's Retry-After is always honored.
+ */
+/* package */ class RetryBackoff {
+
+    /* package */ RetryBackoff() {
+        this(QUICK_RETRIES, QUICK_BASE_MILLIS, BASE_MILLIS, CAP_MILLIS, new Random());
+    }
+
+    /* package */ RetryBackoff(
+            int quickRetries, long quickBaseMillis, long baseMillis, long capMillis, Random random) {
+        mQuickRetries = quickRetries;
+        mQuickBaseMillis = quickBaseMillis;
+        mBaseMillis = baseMillis;
+        mCapMillis = capMillis;
+        mRandom = random;
+    }
+
+    /**
+     * @param failures how many times in a row the flush has already failed before this one
+     * @param retryAfterMillis the server's Retry-After, or 0 if it didn't send one
+     * @return how long to wait before the next attempt
+     */
+    /* package */ long delayMillis(int failures, long retryAfterMillis) {
+        final long ceiling = ceilingMillis(failures);
+        final long jittered = (long) (mRandom.nextDouble() * (ceiling + 1));
+        return Math.min(Math.max(jittered, retryAfterMillis), mCapMillis);
+    }
+
+    // The longest delay allowed after this many failures, before jitter
+    /* package */ long ceilingMillis(int failures) {
+        final int quick = Math.max(0, failures);
+        if (quick < mQuickRetries) {
+            return Math.min(mQuickBaseMillis << quick, mCapMillis);
+        }
+        // Shifting by 30 or more would overflow, and the cap is reached long before that
+        final int slow = Math.min(quick - mQuickRetries, 30);
+        return Math.min(mBaseMillis << slow, mCapMillis);
+    }
+
+    private final int mQuickRetries;
+    private final long mQuickBaseMillis;
+    private final long mBaseMillis;
+    private final long mCapMillis;
+    private final Random mRandom;
+
+    private static final int QUICK_RETRIES = 2;
+    private static final long QUICK_BASE_MILLIS = 100;
+    private static final long BASE_MILLIS = 60 * 1000;
+    private static final long CAP_MILLIS = 10 * 60 * 1000;
+}
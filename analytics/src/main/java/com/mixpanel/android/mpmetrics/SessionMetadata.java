@@ -6,50 +6,75 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.mixpanel.android.mpmetrics.ConfigurationChecker.LOGTAG;
 
+/**
+ * Builds the $mp_metadata attached to every event and people message. Safe to call from any
+ * thread without locking: the session is an immutable object replaced by {@link #initSession()},
+ * sequence ids come from atomic counters and ids from {@link #nextId()}.
+ */
 /* package */ class SessionMetadata {
-    private long mEventsCounter, mPeopleCounter, mSessionStartEpoch;
-    private String mSessionID;
-    private final SecureRandom mRandom;
 
     /* package */ SessionMetadata() {
         initSession();
-        mRandom = new SecureRandom();
     }
 
     protected void initSession() {
-        mEventsCounter = 0L;
-        mPeopleCounter = 0L;
-        mSessionID = Long.toHexString(new SecureRandom().nextLong());
-        mSessionStartEpoch = System.currentTimeMillis() / 1000;
+        mSession = new Session(Long.toHexString(nextId()), System.currentTimeMillis() / 1000);
     }
 
     public JSONObject getMetadataForEvent() {
-        return getNewMetadata(true);
+        final Session session = mSession;
+        return getNewMetadata(session, session.mEventsCounter.getAndIncrement());
     }
 
     public JSONObject getMetadataForPeople() {
-        return getNewMetadata(false);
+        final Session session = mSession;
+        return getNewMetadata(session, session.mPeopleCounter.getAndIncrement());
     }
 
-    private JSONObject getNewMetadata(boolean isEvent) {
+    private JSONObject getNewMetadata(Session session, long sequenceId) {
         JSONObject metadataJson = new JSONObject();
         try {
-            metadataJson.put("$mp_event_id", Long.toHexString(mRandom.nextLong()));
-            metadataJson.put("$mp_session_id", mSessionID);
-            metadataJson.put("$mp_session_seq_id", isEvent ? mEventsCounter : mPeopleCounter);
-            metadataJson.put("$mp_session_start_sec", mSessionStartEpoch);
-            if (isEvent) {
-                mEventsCounter++;
-            } else {
-                mPeopleCounter++;
-            }
+            metadataJson.put("$mp_event_id", Long.toHexString(nextId()));
+            metadataJson.put("$mp_session_id", session.mSessionID);
+            metadataJson.put("$mp_session_seq_id", sequenceId);
+            metadataJson.put("$mp_session_start_sec", session.mSessionStartEpoch);
         } catch (JSONException e) {
             MPLog.e(LOGTAG, "Cannot create session metadata JSON object", e);
         }
 
         return metadataJson;
     }
+
+    /**
+     * A random-looking 64 bit id. The SplitMix64 finalizer is applied to a shared counter that
+     * was seeded once from SecureRandom, so ids never block on the entropy source or on each
+     * other, and none repeats within a process.
+     */
+    /* package */ static long nextId() {
+        long z = sIdSequence.addAndGet(GOLDEN_GAMMA);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static class Session {
+        Session(String sessionID, long sessionStartEpoch) {
+            mSessionID = sessionID;
+            mSessionStartEpoch = sessionStartEpoch;
+        }
+
+        final String mSessionID;
+        final long mSessionStartEpoch;
+        final AtomicLong mEventsCounter = new AtomicLong();
+        final AtomicLong mPeopleCounter = new AtomicLong();
+    }
+
+    private volatile Session mSession;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final AtomicLong sIdSequence = new AtomicLong(new SecureRandom().nextLong());
 }
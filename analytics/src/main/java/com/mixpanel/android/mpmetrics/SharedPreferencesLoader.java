@@ -26,6 +26,11 @@ import android.content.SharedPreferences;
         return task;
     }
 
+    // Runs task on the loader thread, after every load requested before it
+    /* package */ void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
     private static class LoadSharedPreferences implements Callable<SharedPreferences> {
         public LoadSharedPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
             mContext = context;
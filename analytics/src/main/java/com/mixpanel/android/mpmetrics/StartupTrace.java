@@ -0,0 +1,98 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.Trace;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the stages of MixpanelAPI initialization. Each stage shows up as a "Mixpanel:" section in
+ * system traces, and {@link #log(String)} writes the cost of the stages since the last call to
+ * the verbose log.
+ */
+/* package */ class StartupTrace {
+
+    /* package */ interface Stage<T> {
+        T run();
+    }
+
+    /* package */ StartupTrace(String label) {
+        mLabel = label;
+    }
+
+    // Runs body as one stage, which ends even if body throws
+    /* package */ void run(String stage, Runnable body) {
+        begin(stage);
+        try {
+            body.run();
+        } finally {
+            end();
+        }
+    }
+
+    // Like run, for a stage that produces a value
+    /* package */ <T> T call(String stage, Stage<T> body) {
+        begin(stage);
+        try {
+            return body.run();
+        } finally {
+            end();
+        }
+    }
+
+    /* package */ synchronized void begin(String stage) {
+        mStage = stage;
+        mStageStart = System.nanoTime();
+        Trace.beginSection(SECTION_PREFIX + stage);
+    }
+
+    /* package */ synchronized void end() {
+        Trace.endSection();
+        final long elapsed = System.nanoTime() - mStageStart;
+        mStages.put(mStage, elapsed);
+        mUnlogged.put(mStage, elapsed);
+        mStage = null;
+    }
+
+    /**
+     * Logs the stages that ended since the last call, with their total, under the given phase.
+     */
+    /* package */ synchronized void log(String phase) {
+        if (mUnlogged.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        final StringBuilder stages = new StringBuilder();
+        for (final Map.Entry<String, Long> stage : mUnlogged.entrySet()) {
+            total += stage.getValue();
+            if (stages.length() > 0) {
+                stages.append(", ");
+            }
+            stages.append(stage.getKey()).append(' ').append(formatMillis(stage.getValue()));
+        }
+        mUnlogged.clear();
+        MPLog.v(LOGTAG, mLabel + " " + phase + " took " + formatMillis(total) + " (" + stages + ")");
+    }
+
+    /**
+     * @return the duration in nanoseconds of every finished stage, in the order they ran
+     */
+    /* package */ synchronized Map<String, Long> getStageNanos() {
+        return new LinkedHashMap<String, Long>(mStages);
+    }
+
+    private static String formatMillis(long nanos) {
+        return (nanos / 10000) / 100.0 + "ms";
+    }
+
+    private final String mLabel;
+    private final Map<String, Long> mStages = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> mUnlogged = new LinkedHashMap<String, Long>();
+    private String mStage;
+    private long mStageStart;
+
+    private static final String SECTION_PREFIX = "Mixpanel:";
+    private static final String LOGTAG = "MixpanelAPI.Startup";
+}
@@ -0,0 +1,67 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Event properties collected by an {@link EventBuilder}, held in parallel arrays rather than a
+ * JSONObject so primitive values stay unboxed until the worker writes them out.
+ *
+ * <p>Longs, doubles (as their raw bits) and booleans share one long array; strings and other
+ * JSON values go in an object array. Instances are immutable once handed to track.
+ */
+/* package */ final class TypedProperties {
+
+    /* package */ static final byte TYPE_LONG = 0;
+    /* package */ static final byte TYPE_DOUBLE = 1;
+    /* package */ static final byte TYPE_BOOLEAN = 2;
+    /* package */ static final byte TYPE_OBJECT = 3;
+
+    /* package */ TypedProperties(String[] keys, byte[] types, long[] primitives, Object[] objects, int size) {
+        mKeys = keys;
+        mTypes = types;
+        mPrimitives = primitives;
+        mObjects = objects;
+        mSize = size;
+    }
+
+    /* package */ int size() {
+        return mSize;
+    }
+
+    /**
+     * Puts every property into target, in the order they were added, so later values for a key
+     * replace earlier ones just as they would in a JSONObject.
+     */
+    /* package */ void writeTo(JSONObject target) throws JSONException {
+        for (int i = 0; i < mSize; i++) {
+            final String key = mKeys[i];
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    target.put(key, mPrimitives[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    target.put(key, Double.longBitsToDouble(mPrimitives[i]));
+                    break;
+                case TYPE_BOOLEAN:
+                    target.put(key, mPrimitives[i] != 0);
+                    break;
+                default:
+                    target.put(key, mObjects[i]);
+                    break;
+            }
+        }
+    }
+
+    /* package */ JSONObject toJSONObject() throws JSONException {
+        final JSONObject ret = new JSONObject();
+        writeTo(ret);
+        return ret;
+    }
+
+    private final String[] mKeys;
+    private final byte[] mTypes;
+    private final long[] mPrimitives;
+    private final Object[] mObjects;
+    private final int mSize;
+}
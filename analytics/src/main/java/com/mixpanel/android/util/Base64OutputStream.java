@@ -0,0 +1,96 @@
+package com.mixpanel.android.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64 encodes bytes as they are written, so large payloads can be encoded
+ * without first holding the whole input and output in memory.
+ *
+ * <p>Produces the same output as {@link Base64Coder#encode(byte[])}. When formEncode is
+ * set, the '+', '/' and '=' characters are percent-escaped as well, so the output can be
+ * used directly as an application/x-www-form-urlencoded value.
+ *
+ * <p>{@link #finish()} must be called (directly or through {@link #close()}) to write the
+ * final group and its padding.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+
+    public Base64OutputStream(OutputStream out, boolean formEncode) {
+        super(out);
+        mFormEncode = formEncode;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mGroup[mGroupLength++] = (byte) b;
+        if (mGroupLength == 3) {
+            writeGroup();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Writes any buffered bytes and the padding. No more bytes may be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (!mFinished) {
+            if (mGroupLength > 0) {
+                writeGroup();
+            }
+            mFinished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    private void writeGroup() throws IOException {
+        final int length = mGroupLength;
+        final int i0 = mGroup[0] & 0xff;
+        final int i1 = length > 1 ? mGroup[1] & 0xff : 0;
+        final int i2 = length > 2 ? mGroup[2] & 0xff : 0;
+        writeChar(MAP[i0 >>> 2]);
+        writeChar(MAP[((i0 & 3) << 4) | (i1 >>> 4)]);
+        writeChar(length > 1 ? MAP[((i1 & 0xf) << 2) | (i2 >>> 6)] : '=');
+        writeChar(length > 2 ? MAP[i2 & 0x3F] : '=');
+        mGroupLength = 0;
+    }
+
+    private void writeChar(char c) throws IOException {
+        if (mFormEncode) {
+            if (c == '+') {
+                out.write(ESCAPED_PLUS);
+                return;
+            } else if (c == '/') {
+                out.write(ESCAPED_SLASH);
+                return;
+            } else if (c == '=') {
+                out.write(ESCAPED_EQUALS);
+                return;
+            }
+        }
+        out.write(c);
+    }
+
+    private final boolean mFormEncode;
+    private final byte[] mGroup = new byte[3];
+    private int mGroupLength;
+    private boolean mFinished;
+
+    private static final char[] MAP =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] ESCAPED_PLUS = {'%', '2', 'B'};
+    private static final byte[] ESCAPED_SLASH = {'%', '2', 'F'};
+    private static final byte[] ESCAPED_EQUALS = {'%', '3', 'D'};
+}
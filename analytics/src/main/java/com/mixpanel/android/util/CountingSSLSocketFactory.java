@@ -0,0 +1,87 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Wraps the SSLSocketFactory given to HttpService so it can count the TLS connections it opens
+ * and the handshakes they complete. HttpsURLConnection only pools connections made by the same
+ * factory, so HttpService keeps one instance per delegate rather than wrapping per request.
+ */
+/* package */ class CountingSSLSocketFactory extends SSLSocketFactory {
+
+    /* package */ CountingSSLSocketFactory(SSLSocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    /* package */ SSLSocketFactory getDelegate() {
+        return mDelegate;
+    }
+
+    /* package */ long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /* package */ long getHandshakeCount() {
+        return mHandshakes.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return counted(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return counted(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return counted(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return counted(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return counted(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return counted(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket counted(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            mConnections.incrementAndGet();
+            ((SSLSocket) socket).addHandshakeCompletedListener(mHandshakeListener);
+        }
+        return socket;
+    }
+
+    private final SSLSocketFactory mDelegate;
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final HandshakeCompletedListener mHandshakeListener = event -> mHandshakes.incrementAndGet();
+}
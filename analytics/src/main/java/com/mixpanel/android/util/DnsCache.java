@@ -0,0 +1,100 @@
+package com.mixpanel.android.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers host name lookups for a while, including failed ones, so the library resolves each
+ * host at most once per TTL however many requests and checks it makes. Lookups of different
+ * hosts don't wait on each other; concurrent lookups of the same host share one resolution.
+ *
+ * <p>Only used for the ad blocker check and error reports, HttpURLConnection still does its own
+ * resolution when connecting.
+ */
+/* package */ class DnsCache {
+
+    /* package */ interface Resolver {
+        InetAddress resolve(String host) throws UnknownHostException;
+    }
+
+    /* package */ static DnsCache getInstance() {
+        return sInstance;
+    }
+
+    /* package */ DnsCache(long ttlMillis, long negativeTtlMillis, Resolver resolver) {
+        mTtlMillis = ttlMillis;
+        mNegativeTtlMillis = negativeTtlMillis;
+        mResolver = resolver;
+    }
+
+    /**
+     * Returns an address for host, resolving it only if there is no fresh entry. Blocks while
+     * resolving, so call on a worker thread.
+     *
+     * @throws UnknownHostException if the host can't be resolved now, or couldn't be within the
+     *     negative TTL
+     */
+    /* package */ InetAddress lookup(String host) throws UnknownHostException {
+        HostEntry entry = mEntries.get(host);
+        if (null == entry) {
+            final HostEntry created = new HostEntry();
+            entry = mEntries.putIfAbsent(host, created);
+            if (null == entry) {
+                entry = created;
+            }
+        }
+
+        synchronized (entry) {
+            final long now = now();
+            if (now >= entry.mExpiresAt) {
+                try {
+                    entry.mAddress = mResolver.resolve(host);
+                    entry.mLastAddress = entry.mAddress;
+                    entry.mFailure = null;
+                    entry.mExpiresAt = now + mTtlMillis;
+                } catch (final UnknownHostException e) {
+                    entry.mAddress = null;
+                    entry.mFailure = e;
+                    entry.mExpiresAt = now + mNegativeTtlMillis;
+                }
+            }
+            if (null != entry.mFailure) {
+                throw entry.mFailure;
+            }
+            return entry.mAddress;
+        }
+    }
+
+    /**
+     * Returns the last address host resolved to, even if it has expired, or null if it never
+     * resolved. Never resolves or waits for a lookup in progress, so it's safe on any thread.
+     */
+    /* package */ InetAddress cachedAddress(String host) {
+        final HostEntry entry = mEntries.get(host);
+        return null == entry ? null : entry.mLastAddress;
+    }
+
+    // Monotonic milliseconds, overridden by tests
+    /* package */ long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static class HostEntry {
+        InetAddress mAddress;
+        UnknownHostException mFailure;
+        long mExpiresAt = Long.MIN_VALUE;
+        volatile InetAddress mLastAddress; // Read without the entry lock
+    }
+
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final Resolver mResolver;
+    private final ConcurrentHashMap<String, HostEntry> mEntries = new ConcurrentHashMap<>();
+
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final DnsCache sInstance =
+            new DnsCache(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, InetAddress::getByName);
+}
@@ -0,0 +1,170 @@
+package com.mixpanel.android.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how requests to each host have been going, so HttpService can stop sending requests to
+ * a host that keeps failing and go straight to the other one.
+ *
+ * <p>Each host has a circuit breaker. It opens after several failures in a row, or when the
+ * host's recent success rate drops too low, and requests skip the host while it's open. Once the
+ * cooldown has passed the circuit is half-open: one request is let through as a probe, which
+ * closes the circuit if it succeeds and reopens it, with a longer cooldown, if it fails. The
+ * success rate and latency are exponentially weighted averages, so recent requests count most.
+ */
+/* package */ class HostHealth {
+
+    /* package */ enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /* package */ static HostHealth getInstance() {
+        return sInstance;
+    }
+
+    /* package */ HostHealth(long cooldownMillis, long maxCooldownMillis) {
+        mCooldownMillis = cooldownMillis;
+        mMaxCooldownMillis = maxCooldownMillis;
+    }
+
+    /**
+     * Returns true if a request to host should be sent now. While the circuit is half-open this
+     * returns true once, for the probe, until that probe's result is recorded.
+     */
+    /* package */ boolean allowRequest(String host) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            if (entry.mState == State.CLOSED) {
+                return true;
+            }
+            if (entry.mState == State.OPEN && now() >= entry.mOpenUntil) {
+                entry.mState = State.HALF_OPEN;
+                entry.mProbeInFlight = false;
+            }
+            if (entry.mState == State.HALF_OPEN && !entry.mProbeInFlight) {
+                entry.mProbeInFlight = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // The host answered, even if with a client error, so it's reachable
+    /* package */ void recordSuccess(String host, long latencyMillis) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            entry.record(1.0, latencyMillis);
+            entry.mConsecutiveFailures = 0;
+            if (entry.mState != State.CLOSED) {
+                MPLog.d(LOGTAG, "Host " + host + " is answering again, closing its circuit");
+            }
+            entry.mState = State.CLOSED;
+            entry.mProbeInFlight = false;
+            entry.mCooldown = mCooldownMillis;
+        }
+    }
+
+    /* package */ void recordFailure(String host, long latencyMillis) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            entry.record(0.0, latencyMillis);
+            entry.mConsecutiveFailures++;
+            if (entry.mState == State.HALF_OPEN) {
+                // The probe failed, so wait longer before the next one
+                entry.mCooldown = Math.min(entry.mCooldown * 2, mMaxCooldownMillis);
+                open(host, entry);
+            } else if (entry.mState == State.CLOSED
+                    && (entry.mConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES
+                        || (entry.mSamples >= MIN_SAMPLES && entry.mSuccessRate < MIN_SUCCESS_RATE))) {
+                open(host, entry);
+            }
+        }
+    }
+
+    /* package */ State getState(String host) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            return entry.mState;
+        }
+    }
+
+    /* package */ double getSuccessRate(String host) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            return entry.mSuccessRate;
+        }
+    }
+
+    /* package */ double getLatencyMillis(String host) {
+        final HostEntry entry = entryFor(host);
+        synchronized (entry) {
+            return entry.mLatencyMillis;
+        }
+    }
+
+    // Monotonic milliseconds, overridden by tests
+    /* package */ long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void open(String host, HostEntry entry) {
+        entry.mState = State.OPEN;
+        entry.mProbeInFlight = false;
+        entry.mOpenUntil = now() + entry.mCooldown;
+        MPLog.w(LOGTAG, "Not sending requests to " + host + " for " + entry.mCooldown + "ms: "
+                + entry.mConsecutiveFailures + " failures in a row, success rate "
+                + Math.round(entry.mSuccessRate * 100) + "%, latency "
+                + Math.round(entry.mLatencyMillis) + "ms");
+    }
+
+    private HostEntry entryFor(String host) {
+        HostEntry entry = mEntries.get(host);
+        if (null == entry) {
+            final HostEntry created = new HostEntry(mCooldownMillis);
+            entry = mEntries.putIfAbsent(host, created);
+            if (null == entry) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    private static class HostEntry {
+        HostEntry(long cooldown) {
+            mCooldown = cooldown;
+        }
+
+        void record(double outcome, long latencyMillis) {
+            if (mSamples == 0) {
+                mSuccessRate = outcome;
+                mLatencyMillis = latencyMillis;
+            } else {
+                mSuccessRate += EWMA_WEIGHT * (outcome - mSuccessRate);
+                mLatencyMillis += EWMA_WEIGHT * (latencyMillis - mLatencyMillis);
+            }
+            mSamples++;
+        }
+
+        State mState = State.CLOSED;
+        boolean mProbeInFlight;
+        long mOpenUntil;
+        long mCooldown;
+        int mConsecutiveFailures;
+        int mSamples;
+        double mSuccessRate = 1.0;
+        double mLatencyMillis;
+    }
+
+    private final long mCooldownMillis;
+    private final long mMaxCooldownMillis;
+    private final ConcurrentHashMap<String, HostEntry> mEntries = new ConcurrentHashMap<>();
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final int MIN_SAMPLES = 10;
+    private static final double MIN_SUCCESS_RATE = 0.5;
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final String LOGTAG = "MixpanelAPI.HostHealth";
+    private static final HostHealth sInstance =
+            new HostHealth(TimeUnit.SECONDS.toMillis(30), TimeUnit.MINUTES.toMillis(5));
+}
@@ -19,17 +19,22 @@ import androidx.annotation.WorkerThread;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -41,8 +46,11 @@ public class HttpService implements RemoteService {
     private MixpanelNetworkErrorListener networkErrorListener;
     private String mBackupHost;
     private String mServerHost;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private HostHealth mHostHealth;
 
-    private boolean mIsServerBlocked;
+    private volatile boolean mIsServerBlocked; // Set on the worker, read by flushes
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE =
             HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
@@ -80,9 +88,35 @@ public class HttpService implements RemoteService {
         this.networkErrorListener = networkErrorListener;
     }
 
+    /**
+     * Sets how many times a request is attempted, against the primary and then the backup host,
+     * before it fails. Attempts after the first wait on the calling thread, so callers that
+     * schedule their own retries should set this to 1.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * If enabled, the health of the primary and backup hosts is tracked across requests, and
+     * requests go straight to the backup while the primary keeps failing, instead of waiting for
+     * it to fail first. The primary is probed again after a cooldown. Has no effect without a
+     * backup host.
+     */
+    public void setHostHealthRouting(boolean enabled) {
+        this.mHostHealth = enabled ? HostHealth.getInstance() : null;
+    }
+
+    @VisibleForTesting
+    void setHostHealth(HostHealth hostHealth) {
+        this.mHostHealth = hostHealth;
+    }
+
+    // Blocks on DNS, AnalyticsMessages runs it on its worker thread
     @Override
+    @WorkerThread
     public void checkIsServerBlocked() {
-        new Thread(this::checkIsServerBlockedSync).start();
+        checkIsServerBlockedSync();
     }
 
     // Runs synchronously. Only call on worker thread
@@ -93,7 +127,7 @@ public class HttpService implements RemoteService {
         final String backupHost = mBackupHost;
         try {
             long startTimeNanos = System.nanoTime();
-            InetAddress primaryInet = InetAddress.getByName(primaryHost);
+            InetAddress primaryInet = DnsCache.getInstance().lookup(primaryHost);
 
             if (!isHostBlocked(primaryInet)) {
                 mIsServerBlocked = false;
@@ -106,7 +140,7 @@ public class HttpService implements RemoteService {
 
             if (!TextUtils.isEmpty(backupHost)) {
                 try {
-                    backupBlocked = isHostBlocked(InetAddress.getByName(backupHost));
+                    backupBlocked = isHostBlocked(DnsCache.getInstance().lookup(backupHost));
                     if (backupBlocked) {
                         errorMsg = primaryHost + " and " + backupHost + " are blocked";
                     }
@@ -118,7 +152,7 @@ public class HttpService implements RemoteService {
             mIsServerBlocked = backupBlocked;
             if (backupBlocked) {
                 MPLog.v(LOGTAG, "AdBlocker is enabled. " + errorMsg);
-                onNetworkError(null, primaryHost, primaryInet.getHostAddress(),
+                onNetworkError(null, primaryHost, primaryHost,
                         startTimeNanos, -1, -1, new IOException(errorMsg));
             } else {
                 MPLog.v(LOGTAG, "Primary host blocked, but backup host is available.");
@@ -204,27 +238,63 @@ public class HttpService implements RemoteService {
             @Nullable byte[] requestBodyBytes,
             @Nullable SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException {
+        return performRequestWithRetries(
+                method, endpointUrl, interactor, params, headers, requestBodyBytes, null, socketFactory);
+    }
+
+    /**
+     * Performs an HTTP POST request, streaming the body from the given writer instead of
+     * building it in memory. The body is gzipped on the fly if payload gzipping is enabled.
+     * Failover and retries work as for {@link #performRequest(String, ProxyServerInteractor, Map, Map, byte[], SSLSocketFactory)}.
+     */
+    @Override
+    public RequestResult performStreamingRequest(
+            @NonNull String endpointUrl,
+            @Nullable ProxyServerInteractor interactor,
+            @Nullable Map<String, String> headers,
+            @NonNull RequestBodyWriter body,
+            @Nullable SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException {
+        return performRequestWithRetries(
+                HttpMethod.POST, endpointUrl, interactor, null, headers, null, body, socketFactory);
+    }
+
+    private RequestResult performRequestWithRetries(
+            @NonNull HttpMethod method,
+            @NonNull String endpointUrl,
+            @Nullable ProxyServerInteractor interactor,
+            @Nullable Map<String, Object> params,
+            @Nullable Map<String, String> headers,
+            @Nullable byte[] requestBodyBytes,
+            @Nullable RequestBodyWriter streamingBody,
+            @Nullable SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException {
         
+        final int maxAttempts = mMaxAttempts;
         int retries = 0;
         Exception lastException = null;
         
-        while (retries < 3) {
-            // Try primary host first
-            InternalRequestResult primaryResult = tryRequestWithHost(
-                    method, endpointUrl, "Primary", interactor, params, headers, requestBodyBytes, socketFactory);
-            
-            if (primaryResult.success) {
-                return RequestResult.success(primaryResult.response, primaryResult.requestUrl);
-            }
-            
-            // If it was a client error, throw immediately without retrying
-            if (primaryResult.isClientError) {
-                throw (ClientErrorException) primaryResult.exception;
+        while (retries < maxAttempts) {
+            // Try primary host first, unless it's been failing and the backup hasn't
+            if (shouldTryPrimary(endpointUrl)) {
+                InternalRequestResult primaryResult = tryRequestWithHost(
+                        method, endpointUrl, "Primary", interactor, params, headers, requestBodyBytes, streamingBody, socketFactory);
+
+                if (primaryResult.success) {
+                    return RequestResult.success(primaryResult.response, primaryResult.requestUrl);
+                }
+
+                // If it was a client error, throw immediately without retrying
+                if (primaryResult.isClientError) {
+                    throw (ClientErrorException) primaryResult.exception;
+                }
+
+                // Primary failed, update last exception
+                lastException = primaryResult.exception;
+            } else {
+                MPLog.v(LOGTAG, "Primary host is failing, going straight to backup");
             }
             
-            // Primary failed, update last exception
-            lastException = primaryResult.exception;
-            
             // If primary failed (and it wasn't a client error), try backup host if configured
             if (mBackupHost != null && !mBackupHost.isEmpty()) {
                 String backupUrl = replaceHost(endpointUrl, mBackupHost);
@@ -235,7 +305,7 @@ public class HttpService implements RemoteService {
                     MPLog.v(LOGTAG, "Primary failed, trying backup: " + backupUrl);
                     
                     InternalRequestResult backupResult = tryRequestWithHost(
-                            method, backupUrl, "Backup", interactor, params, headers, requestBodyBytes, socketFactory);
+                            method, backupUrl, "Backup", interactor, params, headers, requestBodyBytes, streamingBody, socketFactory);
                     
                     if (backupResult.success) {
                         return RequestResult.success(backupResult.response, backupResult.requestUrl);
@@ -254,7 +324,7 @@ public class HttpService implements RemoteService {
             
             // Both primary and backup failed, increment retry counter
             retries++;
-            if (retries < 3) {
+            if (retries < maxAttempts) {
                 MPLog.d(LOGTAG, "Attempt " + retries + " failed, retrying...");
                 // Add a small delay before retry to avoid hammering the servers
                 try {
@@ -282,6 +352,31 @@ public class HttpService implements RemoteService {
     }
 
 
+    // Only false while host health routing is on, the primary's circuit is open and the
+    // backup's isn't
+    private boolean shouldTryPrimary(String endpointUrl) {
+        final HostHealth health = mHostHealth;
+        final String backupHost = mBackupHost;
+        if (null == health || backupHost == null || backupHost.isEmpty()) {
+            return true;
+        }
+        final String primaryHost = hostOf(endpointUrl);
+        if (primaryHost == null || primaryHost.equals(backupHost) || health.allowRequest(primaryHost)) {
+            return true;
+        }
+        // With both hosts failing, fall back to trying them in the usual order
+        return !health.allowRequest(backupHost);
+    }
+
+    @Nullable
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
     @VisibleForTesting
     String replaceHost(String url, String newHost) {
         try {
@@ -298,6 +393,7 @@ public class HttpService implements RemoteService {
     /**
      * Attempts a single request to the specified URL and returns an InternalRequestResult.
      * This helper method encapsulates the try/catch logic for both primary and backup host attempts.
+     * If host health routing is on, the outcome is recorded against the URL's host.
      * 
      * @param url The URL to send the request to
      * @param hostLabel A label for logging ("primary" or "backup")
@@ -305,6 +401,7 @@ public class HttpService implements RemoteService {
      * @param params The request parameters (can be null)
      * @param headers The request headers (can be null)
      * @param requestBodyBytes The raw request body (can be null)
+     * @param streamingBody Writes the request body directly to the connection (can be null)
      * @param socketFactory The SSL socket factory (can be null)
      * @return InternalRequestResult containing the response or error information
      */
@@ -316,11 +413,39 @@ public class HttpService implements RemoteService {
             @Nullable Map<String, Object> params,
             @Nullable Map<String, String> headers,
             @Nullable byte[] requestBodyBytes,
+            @Nullable RequestBodyWriter streamingBody,
+            @Nullable SSLSocketFactory socketFactory) {
+        final long startNanos = System.nanoTime();
+        final InternalRequestResult result =
+                attemptRequest(method, url, hostLabel, interactor, params, headers, requestBodyBytes, streamingBody, socketFactory);
+        final HostHealth health = mHostHealth;
+        final String host = null == health ? null : hostOf(url);
+        if (null != host) {
+            final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            // A client error still means the host is up and answering
+            if (result.success || result.isClientError) {
+                health.recordSuccess(host, latencyMillis);
+            } else {
+                health.recordFailure(host, latencyMillis);
+            }
+        }
+        return result;
+    }
+
+    // The request itself, for tryRequestWithHost
+    private InternalRequestResult attemptRequest(
+            @NonNull HttpMethod method,
+            @NonNull String url,
+            @NonNull String hostLabel,
+            @Nullable ProxyServerInteractor interactor,
+            @Nullable Map<String, Object> params,
+            @Nullable Map<String, String> headers,
+            @Nullable byte[] requestBodyBytes,
+            @Nullable RequestBodyWriter streamingBody,
             @Nullable SSLSocketFactory socketFactory) {
-        
         try {
             byte[] response = performSingleRequest(
-                    method, url, interactor, params, headers, requestBodyBytes, socketFactory);
+                    method, url, interactor, params, headers, requestBodyBytes, streamingBody, socketFactory);
             
             // Treat null response as failure
             if (response == null) {
@@ -353,6 +478,7 @@ public class HttpService implements RemoteService {
             @Nullable Map<String, Object> params,
             @Nullable Map<String, String> headers,
             @Nullable byte[] requestBodyBytes,
+            @Nullable RequestBodyWriter streamingBody,
             @Nullable SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException {
 
@@ -382,15 +508,17 @@ public class HttpService implements RemoteService {
         MPLog.v(
                 LOGTAG,
                 "Attempting " + method + " request to " + fullUrl
-                        + (method == HttpMethod.POST && requestBodyBytes != null ? " (Raw Body)" : 
+                        + (method == HttpMethod.POST && streamingBody != null ? " (Streamed Body)" :
+                           method == HttpMethod.POST && requestBodyBytes != null ? " (Raw Body)" : 
                            method == HttpMethod.POST && params != null ? " (URL params)" : ""));
         byte[] response = null;
         InputStream in = null;
         OutputStream out = null; // Raw output stream
         HttpURLConnection connection = null;
+        CountingSSLSocketFactory countingFactory = null;
 
         // Variables for error listener reporting
-        String targetIpAddress = null;
+        String targetHost = null;
         long startTimeNanos = System.nanoTime();
         long uncompressedBodySize = -1;
         long compressedBodySize = -1; // Only set if gzip applied to params
@@ -398,22 +526,19 @@ public class HttpService implements RemoteService {
         try {
                 // --- Connection Setup ---
                 final URL url = new URL(fullUrl);
-                try { // Get IP Address for error reporting, but don't fail request if DNS fails here
-                    InetAddress inetAddress = InetAddress.getByName(url.getHost());
-                    targetIpAddress = inetAddress.getHostAddress();
-                } catch (Exception e) {
-                    MPLog.v(LOGTAG, "Could not resolve IP address for " + url.getHost(), e);
-                    targetIpAddress = "N/A"; // Default if lookup fails
-                }
+                // Only resolved if an error is reported, the connection does its own lookup
+                targetHost = url.getHost();
 
                 connection = (HttpURLConnection) url.openConnection();
-                if (null != socketFactory && connection instanceof HttpsURLConnection) {
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+                if (connection instanceof HttpsURLConnection) {
+                    countingFactory = countingSocketFactory(socketFactory);
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(countingFactory);
                 }
                 connection.setConnectTimeout(2000);
                 connection.setReadTimeout(30000);
                 connection.setRequestMethod(method.toString());
-                connection.setDoOutput(method == HttpMethod.POST && (requestBodyBytes != null || params != null));
+                connection.setDoOutput(method == HttpMethod.POST
+                        && (requestBodyBytes != null || params != null || streamingBody != null));
 
                 // --- Handle Content-Type for POST requests ---
                 String contentType = null;
@@ -454,7 +579,29 @@ public class HttpService implements RemoteService {
                 connection.setReadTimeout(60000);
 
                 // --- Prepare and Write Body (only for POST requests) ---
-                if (method == HttpMethod.POST) {
+                if (method == HttpMethod.POST && streamingBody != null) {
+                    // --- Stream Body ---
+                    // The length isn't known up front, so the body goes out in chunks
+                    connection.setChunkedStreamingMode(HTTP_OUTPUT_STREAM_BUFFER_SIZE);
+                    if (shouldGzipRequestPayload) {
+                        connection.setRequestProperty(CONTENT_ENCODING_HEADER, GZIP_CONTENT_TYPE_HEADER);
+                    }
+                    final CountingOutputStream wireOut = new CountingOutputStream(
+                            new BufferedOutputStream(connection.getOutputStream(), HTTP_OUTPUT_STREAM_BUFFER_SIZE));
+                    final CountingOutputStream bodyOut = shouldGzipRequestPayload
+                            ? new CountingOutputStream(new GZIPOutputStream(wireOut, HTTP_OUTPUT_STREAM_BUFFER_SIZE))
+                            : wireOut;
+                    out = bodyOut;
+                    streamingBody.writeTo(bodyOut);
+                    out.close(); // Finishes the gzip stream and closes the connection's stream
+                    out = null;
+                    uncompressedBodySize = bodyOut.getCount();
+                    if (shouldGzipRequestPayload) {
+                        compressedBodySize = wireOut.getCount();
+                    }
+                    MPLog.v(LOGTAG, "Streamed body of size: " + uncompressedBodySize
+                            + (shouldGzipRequestPayload ? ", compressed size: " + compressedBodySize : ""));
+                } else if (method == HttpMethod.POST) {
                     byte[] bytesToWrite;
                     if (requestBodyBytes != null) {
                         // --- Use Raw Body ---
@@ -515,11 +662,13 @@ public class HttpService implements RemoteService {
                 if (responseCode >= 200 && responseCode < 300) { // Success
                     in = connection.getInputStream();
                     response = slurp(in);
+                    logConnectionStats(countingFactory);
                 } else if (responseCode >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE
                         && responseCode <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) { // Server Error 5xx
                     MPLog.w(
                             LOGTAG,
                             "Server error " + responseCode + " (" + responseMessage + ") for URL: " + fullUrl);
+                    drainErrorStream(connection);
                     ServiceUnavailableException serviceException = new ServiceUnavailableException(
                             "Service Unavailable: " + responseCode,
                             connection.getHeaderField("Retry-After"));
@@ -527,7 +676,7 @@ public class HttpService implements RemoteService {
                     onNetworkError(
                             connection,
                             fullUrl,
-                            targetIpAddress,
+                            targetHost,
                             startTimeNanos,
                             uncompressedBodySize,
                             compressedBodySize,
@@ -538,22 +687,17 @@ public class HttpService implements RemoteService {
                     MPLog.w(
                             LOGTAG,
                             "Client error " + responseCode + " (" + responseMessage + ") for URL: " + fullUrl);
+                    final byte[] errorBytes = drainErrorStream(connection);
                     String errorBody = null;
-                    try {
-                        in = connection.getErrorStream();
-                        if (in != null) {
-                            byte[] errorBytes = slurp(in);
-                            errorBody = new String(errorBytes, StandardCharsets.UTF_8);
-                            MPLog.w(LOGTAG, "Error Body: " + errorBody);
-                        }
-                    } catch (Exception e) {
-                        MPLog.w(LOGTAG, "Could not read error stream.", e);
+                    if (errorBytes != null) {
+                        errorBody = new String(errorBytes, StandardCharsets.UTF_8);
+                        MPLog.w(LOGTAG, "Error Body: " + errorBody);
                     }
                     // Report error via listener
                     onNetworkError(
                             connection,
                             fullUrl,
-                            targetIpAddress,
+                            targetHost,
                             startTimeNanos,
                             uncompressedBodySize,
                             compressedBodySize,
@@ -572,7 +716,7 @@ public class HttpService implements RemoteService {
                 onNetworkError(
                         connection,
                         fullUrl,
-                        targetIpAddress,
+                        targetHost,
                         startTimeNanos,
                         uncompressedBodySize,
                         compressedBodySize,
@@ -584,7 +728,7 @@ public class HttpService implements RemoteService {
                 onNetworkError(
                         connection,
                         fullUrl,
-                        targetIpAddress,
+                        targetHost,
                         startTimeNanos,
                         uncompressedBodySize,
                         compressedBodySize,
@@ -596,7 +740,7 @@ public class HttpService implements RemoteService {
                 onNetworkError(
                         connection,
                         fullUrl,
-                        targetIpAddress,
+                        targetHost,
                         startTimeNanos,
                         uncompressedBodySize,
                         compressedBodySize,
@@ -618,6 +762,7 @@ public class HttpService implements RemoteService {
                     } catch (final IOException e) {
                         /* ignore */
                     }
+                // Returns the connection to the pool if its response was read to the end
                 if (null != connection) connection.disconnect();
             }
 
@@ -627,7 +772,7 @@ public class HttpService implements RemoteService {
     private void onNetworkError(
             HttpURLConnection connection,
             String endpointUrl,
-            String targetIpAddress,
+            String targetHost,
             long startTimeNanos,
             long uncompressedBodySize,
             long compressedBodySize,
@@ -646,7 +791,7 @@ public class HttpService implements RemoteService {
                     MPLog.w(LOGTAG, "Could not retrieve response code/message after error", respExc);
                 }
             }
-            String ip = (targetIpAddress == null) ? "N/A" : targetIpAddress;
+            String ip = addressForReport(targetHost);
             long finalUncompressedSize = Math.max(-1, uncompressedBodySize);
             long finalCompressedSize = Math.max(-1, compressedBodySize);
             try {
@@ -665,6 +810,45 @@ public class HttpService implements RemoteService {
         }
     }
 
+    // HttpsURLConnection pools connections by socket factory, so each factory we're given always
+    // gets the same wrapper, even when requests alternate between factories. Pooled connections
+    // keep their wrapper alive, and once they're gone the wrapper can be collected.
+    private static CountingSSLSocketFactory countingSocketFactory(@Nullable SSLSocketFactory socketFactory) {
+        final SSLSocketFactory delegate =
+                socketFactory != null ? socketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+        synchronized (sCountingSocketFactories) {
+            final WeakReference<CountingSSLSocketFactory> ref = sCountingSocketFactories.get(delegate);
+            CountingSSLSocketFactory factory = ref != null ? ref.get() : null;
+            if (factory == null) {
+                factory = new CountingSSLSocketFactory(delegate);
+                sCountingSocketFactories.put(delegate, new WeakReference<>(factory));
+            }
+            return factory;
+        }
+    }
+
+    private static void logConnectionStats(@Nullable CountingSSLSocketFactory factory) {
+        final long requests = sSuccessfulRequests.incrementAndGet();
+        if (factory != null) {
+            MPLog.v(LOGTAG, requests + " successful requests, using " + factory.getConnectionCount()
+                    + " TLS connections and " + factory.getHandshakeCount() + " handshakes");
+        }
+    }
+
+    // The wrapper requests made with socketFactory use, null for the default factory
+    /* package */ static CountingSSLSocketFactory getCountingSocketFactory(@Nullable SSLSocketFactory socketFactory) {
+        return countingSocketFactory(socketFactory);
+    }
+
+    // Only what the cache already knows: reporting an error never waits on a DNS lookup
+    private static String addressForReport(String host) {
+        if (host == null) {
+            return "N/A";
+        }
+        final InetAddress address = DnsCache.getInstance().cachedAddress(host);
+        return address != null ? address.getHostAddress() : "N/A";
+    }
+
     private OutputStream getBufferedOutputStream(OutputStream out) throws IOException {
         if (shouldGzipRequestPayload) {
             return new GZIPOutputStream(new BufferedOutputStream(out), HTTP_OUTPUT_STREAM_BUFFER_SIZE);
@@ -677,6 +861,28 @@ public class HttpService implements RemoteService {
         return !endpointUrl.toLowerCase().contains(MIXPANEL_API.toLowerCase());
     }
 
+    // Reads the error body to the end and closes it, as otherwise disconnect() closes the
+    // connection instead of pooling it. Null if there is no body or it can't be read.
+    @Nullable
+    private static byte[] drainErrorStream(HttpURLConnection connection) {
+        final InputStream in = connection.getErrorStream();
+        if (in == null) {
+            return null;
+        }
+        try {
+            return slurp(in);
+        } catch (IOException e) {
+            MPLog.v(LOGTAG, "Could not read error stream.", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                /* ignore */
+            }
+        }
+    }
+
     private static byte[] slurp(final InputStream inputStream) throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
@@ -691,11 +897,41 @@ public class HttpService implements RemoteService {
         return buffer.toByteArray();
     }
 
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        private long mCount;
+    }
+
     private static final String LOGTAG = "MixpanelAPI.Message";
     private static final int HTTP_OUTPUT_STREAM_BUFFER_SIZE = 8192;
     private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
     private static final String GZIP_CONTENT_TYPE_HEADER = "gzip";
 
+    // Shared by every HttpService, since connections are pooled process wide. The values are weak
+    // references too, because each wrapper holds on to its key
+    private static final Map<SSLSocketFactory, WeakReference<CountingSSLSocketFactory>> sCountingSocketFactories =
+            new WeakHashMap<>();
+    private static final AtomicLong sSuccessfulRequests = new AtomicLong();
+
     /**
      * Internal helper class to encapsulate the result of a request attempt.
      * Used to avoid duplicate try/catch blocks for primary and backup host attempts.
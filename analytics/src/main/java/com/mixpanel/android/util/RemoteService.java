@@ -6,7 +6,9 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import javax.net.ssl.SSLSocketFactory;
@@ -19,6 +21,10 @@ public interface RemoteService {
 
     boolean isOnline(Context context, OfflineMode offlineMode);
 
+    /**
+     * Checks whether an ad blocker hides the Mixpanel hosts. May block, and is called on the
+     * library's worker thread.
+     */
     void checkIsServerBlocked();
 
     /**
@@ -69,6 +75,42 @@ public interface RemoteService {
             @Nullable SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException;
 
+    /**
+     * A request body that is written straight to the connection rather than built up front.
+     * It may be written more than once, since failed requests are retried.
+     */
+    interface RequestBodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Performs an HTTP POST request whose body is streamed from body. The Content-Type should
+     * be given in headers.
+     *
+     * <p>The default implementation writes the body into memory and sends it with
+     * {@link #performRequest(String, ProxyServerInteractor, Map, Map, byte[], SSLSocketFactory)}.
+     *
+     * @param endpointUrl   The target URL.
+     * @param interactor    Optional proxy interactor.
+     * @param headers       Optional map of custom headers (e.g., Authorization, Content-Type).
+     * @param body          Writes the request body, possibly once per attempt.
+     * @param socketFactory Optional custom SSLSocketFactory.
+     * @return A RequestResult containing the response body, actual URL used, and success status.
+     * @throws ServiceUnavailableException If the server returned a 5xx error with a Retry-After header.
+     * @throws IOException                For network errors or non-5xx HTTP errors where reading failed.
+     */
+    default RequestResult performStreamingRequest(
+            @NonNull String endpointUrl,
+            @Nullable ProxyServerInteractor interactor,
+            @Nullable Map<String, String> headers,
+            @NonNull RequestBodyWriter body,
+            @Nullable SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        body.writeTo(buffer);
+        return performRequest(endpointUrl, interactor, null, headers, buffer.toByteArray(), socketFactory);
+    }
+
     class ServiceUnavailableException extends Exception {
         public ServiceUnavailableException(String message, String strRetryAfter) {
             super(message);
@@ -0,0 +1,32 @@
+package com.mixpanel.android.util;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Implement this to send Mixpanel's requests over your own HTTP stack, for example a client that
+ * multiplexes requests to the same host over one HTTP/2 connection. Register it with
+ * {@link com.mixpanel.android.mpmetrics.MPConfig#setRemoteServiceFactory(RemoteServiceFactory)}
+ * before your first call to MixpanelAPI.getInstance.
+ *
+ * <p>The factory is asked once for each transport the library needs: one for flushing events,
+ * people and groups updates, and one for fetching feature flags. Return transports that share one
+ * client if you want those requests to share connections.
+ */
+public interface RemoteServiceFactory {
+
+    /**
+     * Returns the {@link RemoteService} the library should use in place of defaultService.
+     *
+     * <p>defaultService is the {@link HttpService} Mixpanel would otherwise use, already configured
+     * with gzip, backup host and error listener settings. Implementations can delegate to it for
+     * anything they don't want to handle themselves, such as {@link RemoteService#isOnline} and
+     * {@link RemoteService#checkIsServerBlocked()}, or return it unchanged.
+     *
+     * <p>The returned service is called from Mixpanel's worker threads, and must be thread safe.
+     *
+     * @param defaultService the transport Mixpanel would use without a factory
+     * @return the transport to use, never null
+     */
+    @NonNull
+    RemoteService createRemoteService(@NonNull RemoteService defaultService);
+}
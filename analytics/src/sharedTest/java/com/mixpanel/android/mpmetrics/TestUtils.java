@@ -40,6 +40,11 @@ public class TestUtils {
             super(context, referrerPreferences, token, MPConfig.getInstance(context, null), options, false);
         }
 
+        public CleanMixpanelAPI(final Context context, final Future<SharedPreferences> referrerPreferences, final String token, final MPConfig config) {
+            super(context, referrerPreferences, token, config,
+                  new MixpanelOptions.Builder().featureFlagsEnabled(true).build(), false);
+        }
+
         @Override
             /* package */ PersistentIdentity getPersistentIdentity(final Context context, final Future<SharedPreferences> referrerPreferences, final String token, final String instanceName, final DeviceIdProvider deviceIdProvider) {
             String instanceKey = instanceName != null ? instanceName : token;
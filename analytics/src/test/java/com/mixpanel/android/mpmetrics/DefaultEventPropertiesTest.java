@@ -0,0 +1,93 @@
+package com.mixpanel.android.mpmetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class DefaultEventPropertiesTest {
+
+    private Context mContext;
+    private DefaultEventProperties mDefaultProperties;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mDefaultProperties = DefaultEventProperties.getInstance(mContext);
+    }
+
+    @Test
+    public void testSnapshotContainsStaticProperties() {
+        Map<String, Object> snapshot = mDefaultProperties.getSnapshot();
+        assertEquals("android", snapshot.get("mp_lib"));
+        assertEquals(MPConfig.VERSION, snapshot.get("$lib_version"));
+        assertEquals("Android", snapshot.get("$os"));
+        assertTrue(snapshot.containsKey("$screen_dpi"));
+        assertTrue(snapshot.containsKey("$bluetooth_version"));
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() {
+        Map<String, Object> snapshot = mDefaultProperties.getSnapshot();
+        try {
+            snapshot.put("mp_lib", "not android");
+            fail("Default property snapshot should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSnapshotReusedUntilInvalidated() {
+        Map<String, Object> first = mDefaultProperties.getSnapshot();
+        assertSame(first, mDefaultProperties.getSnapshot());
+
+        mDefaultProperties.invalidate();
+        Map<String, Object> refreshed = mDefaultProperties.getSnapshot();
+        assertNotSame(first, refreshed);
+        assertEquals(first.get("mp_lib"), refreshed.get("mp_lib"));
+        assertSame(refreshed, mDefaultProperties.getSnapshot());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testConnectivityBroadcastRefreshesSnapshot() {
+        Map<String, Object> first = mDefaultProperties.getSnapshot();
+        assertSame(first, mDefaultProperties.getSnapshot());
+
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        Shadows.shadowOf(Looper.getMainLooper()).idle();
+
+        assertNotSame(first, mDefaultProperties.getSnapshot());
+    }
+
+    @Test
+    public void testWriteToCopiesSnapshot() throws Exception {
+        JSONObject target = new JSONObject();
+        target.put("token", "test-token");
+        mDefaultProperties.writeTo(target);
+
+        assertEquals("test-token", target.getString("token"));
+        for (Map.Entry<String, Object> entry : mDefaultProperties.getSnapshot().entrySet()) {
+            assertEquals(entry.getValue(), target.get(entry.getKey()));
+        }
+    }
+}
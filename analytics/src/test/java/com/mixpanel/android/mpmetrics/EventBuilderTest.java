@@ -0,0 +1,116 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventBuilderTest {
+
+    @Test
+    public void testWritesTypedValues() throws Exception {
+        EventBuilder builder = new EventBuilder(null, "Purchase");
+        builder.put("count", 3)
+                .put("big", Long.MAX_VALUE)
+                .put("price", 4.25)
+                .put("gift", true)
+                .put("sku", "ABC-123")
+                .put("missing", (String) null)
+                .put("tags", new JSONArray().put("a"));
+
+        TypedProperties properties = builder.takeProperties();
+        assertEquals(7, properties.size());
+
+        JSONObject json = properties.toJSONObject();
+        assertEquals(3, json.getLong("count"));
+        assertEquals(Long.MAX_VALUE, json.getLong("big"));
+        assertEquals(4.25, json.getDouble("price"), 0);
+        assertTrue(json.getBoolean("gift"));
+        assertEquals("ABC-123", json.getString("sku"));
+        assertTrue(json.isNull("missing"));
+        assertEquals("a", json.getJSONArray("tags").getString(0));
+    }
+
+    @Test
+    public void testLaterValuesReplaceEarlierOnes() throws Exception {
+        EventBuilder builder = new EventBuilder(null, "Purchase");
+        builder.put("key", 1).put("key", "two");
+
+        JSONObject target = new JSONObject();
+        target.put("key", "existing");
+        target.put("other", "kept");
+        builder.takeProperties().writeTo(target);
+        assertEquals("two", target.getString("key"));
+        assertEquals("kept", target.getString("other"));
+    }
+
+    @Test
+    public void testSkipsUnsendableValues() throws Exception {
+        final int savedLevel = MPLog.getLevel();
+        MPLog.setLevel(MPLog.NONE);
+        try {
+            EventBuilder builder = new EventBuilder(null, "Purchase");
+            builder.put("nan", Double.NaN).put(null, 1).put("kept", 1.5);
+
+            JSONObject json = builder.takeProperties().toJSONObject();
+            assertEquals(1, json.length());
+            assertEquals(1.5, json.getDouble("kept"), 0);
+        } finally {
+            MPLog.setLevel(savedLevel);
+        }
+    }
+
+    @Test
+    public void testSkipsNonFiniteObjectValues() throws Exception {
+        final int savedLevel = MPLog.getLevel();
+        MPLog.setLevel(MPLog.NONE);
+        try {
+            EventBuilder builder = new EventBuilder(null, "Purchase");
+            builder.put("nan", (Object) Double.NaN)
+                    .put("infinity", (Object) Float.POSITIVE_INFINITY)
+                    .put("kept", (Object) 2.5);
+
+            JSONObject json = builder.takeProperties().toJSONObject();
+            assertEquals(1, json.length());
+            assertEquals(2.5, json.getDouble("kept"), 0);
+        } finally {
+            MPLog.setLevel(savedLevel);
+        }
+    }
+
+    @Test
+    public void testCopiesJSONValuesWhenAdded() throws Exception {
+        EventBuilder builder = new EventBuilder(null, "Purchase");
+        JSONObject item = new JSONObject().put("sku", "ABC-123");
+        JSONArray tags = new JSONArray().put("a");
+        builder.put("item", item).put("tags", tags);
+
+        item.put("sku", "changed");
+        item.put("added", true);
+        tags.put("b");
+
+        JSONObject json = builder.takeProperties().toJSONObject();
+        assertEquals("ABC-123", json.getJSONObject("item").getString("sku"));
+        assertFalse(json.getJSONObject("item").has("added"));
+        assertEquals(1, json.getJSONArray("tags").length());
+    }
+
+    @Test
+    public void testBuilderIsEmptyAfterTaking() throws Exception {
+        EventBuilder builder = new EventBuilder(null, "Purchase");
+        for (int i = 0; i < 20; i++) {
+            builder.put("key" + i, i);
+        }
+        TypedProperties first = builder.takeProperties();
+        assertEquals(0, builder.takeProperties().size());
+
+        builder.put("again", true);
+        assertEquals(1, builder.takeProperties().size());
+        // Taken properties don't change when the builder is reused
+        assertEquals(20, first.toJSONObject().length());
+        assertEquals(19, first.toJSONObject().getLong("key19"));
+    }
+}
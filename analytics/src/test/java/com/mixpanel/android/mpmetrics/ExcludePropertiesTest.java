@@ -47,7 +47,7 @@ public class ExcludePropertiesTest {
 
     private JSONObject buildSampleAutoProps() throws JSONException {
         // Mirrors a representative subset of what
-        // AnalyticsMessages.Worker.getDefaultEventProperties() produces.
+        // DefaultEventProperties produces.
         JSONObject props = new JSONObject();
         props.put("token", "test-token");
         props.put("time", 1700000000000L);
@@ -0,0 +1,65 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.Base64Coder;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlushBatchTest {
+
+    private static FlushBatch batch(String... records) {
+        List<byte[]> bytes = new ArrayList<>();
+        for (String record : records) {
+            bytes.add(record.getBytes(StandardCharsets.UTF_8));
+        }
+        return new FlushBatch("7", 10, bytes);
+    }
+
+    @Test
+    public void testWritesJsonArray() throws Exception {
+        FlushBatch batch = batch("{\"event\":\"a\"}", "{\"event\":\"é\"}");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeJsonTo(out);
+
+        String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals("[{\"event\":\"a\"},{\"event\":\"é\"}]", json);
+        assertEquals(out.size(), batch.getPayloadBytes());
+        assertEquals("7", batch.getLastId());
+        assertEquals(10, batch.getQueueCount());
+        assertEquals(2, batch.getRecordCount());
+    }
+
+    @Test
+    public void testIgnoresTrailingTerminators() throws Exception {
+        List<byte[]> records = new ArrayList<>();
+        records.add(new byte[] {'{', '}', 0});
+        FlushBatch batch = new FlushBatch("1", 1, records);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeJsonTo(out);
+        assertEquals("[{}]", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(4, batch.getPayloadBytes());
+    }
+
+    @Test
+    public void testWritesFormEncodedBase64Data() throws Exception {
+        FlushBatch batch = batch("{\"event\":\"a?>\"}", "{\"event\":\"b\"}");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+
+        String body = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        assertTrue(body.startsWith("data="));
+        String data = URLDecoder.decode(body.substring("data=".length()), "UTF-8");
+        JSONArray decoded = new JSONArray(Base64Coder.decodeString(data));
+        assertEquals(2, decoded.length());
+        assertEquals("a?>", decoded.getJSONObject(0).getString("event"));
+        assertEquals("b", decoded.getJSONObject(1).getString("event"));
+    }
+}
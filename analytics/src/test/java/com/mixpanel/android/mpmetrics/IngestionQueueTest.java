@@ -0,0 +1,138 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class IngestionQueueTest {
+
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new IngestionQueue(1).capacity());
+        assertEquals(8, new IngestionQueue(5).capacity());
+        assertEquals(1024, new IngestionQueue(1024).capacity());
+    }
+
+    @Test
+    public void testCapacityIsClampedAtTheLargestPowerOfTwo() {
+        assertEquals(1, IngestionQueue.capacityFor(0));
+        assertEquals(1, IngestionQueue.capacityFor(-5));
+        assertEquals(1 << 30, IngestionQueue.capacityFor(1 << 30));
+        // Rounding these up used to overflow and loop forever
+        assertEquals(1 << 30, IngestionQueue.capacityFor((1 << 30) + 1));
+        assertEquals(1 << 30, IngestionQueue.capacityFor(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testFifoOrder() {
+        IngestionQueue queue = new IngestionQueue(4);
+        assertNull(queue.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(4, queue.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        IngestionQueue queue = new IngestionQueue(2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("c"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void testWrapsAroundManyTimes() {
+        IngestionQueue queue = new IngestionQueue(4);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(-i));
+            assertEquals(i, queue.poll());
+            assertEquals(-i, queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testRejectsNull() {
+        new IngestionQueue(4).offer(null);
+    }
+
+    @Test
+    public void testConcurrentProducersPreservePerProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final IngestionQueue queue = new IngestionQueue(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(new int[] {producer, i})) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        Map<Integer, Integer> lastSeen = new HashMap<>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            int[] item = (int[]) queue.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            Integer previous = lastSeen.get(item[0]);
+            assertEquals(previous == null ? 0 : previous + 1, item[1]);
+            lastSeen.put(item[0], item[1]);
+            received++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFullPolicyFromConfig() {
+        assertEquals(IngestionQueue.FullPolicy.DROP_NEWEST, IngestionQueue.FullPolicy.fromConfig(null));
+        assertEquals(IngestionQueue.FullPolicy.BLOCK, IngestionQueue.FullPolicy.fromConfig("block"));
+        assertEquals(IngestionQueue.FullPolicy.DROP_NEWEST, IngestionQueue.FullPolicy.fromConfig("nonsense"));
+        assertEquals(IngestionQueue.FullPolicy.DROP_NEWEST, IngestionQueue.FullPolicy.fromConfig("drop_newest"));
+        assertEquals(
+                IngestionQueue.FullPolicy.DROP_AUTOMATIC_FIRST,
+                IngestionQueue.FullPolicy.fromConfig("DROP_AUTOMATIC"));
+    }
+}
@@ -4,9 +4,12 @@ import android.os.Bundle;
 
 import androidx.test.core.app.ApplicationProvider;
 
+import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.OfflineMode;
 import com.mixpanel.android.util.ProxyServerInteractor;
+import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.RemoteServiceFactory;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -139,6 +142,160 @@ public class MPConfigTest {
         assertFalse(config.getTrackAutomaticEvents());
     }
 
+    @Test
+    public void testIngestionQueueSettings() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(0, config.getIngestionQueueCapacity());
+        assertEquals("drop_newest", config.getIngestionQueueFullPolicy());
+
+        metaData.putInt("com.mixpanel.android.MPConfig.IngestionQueueCapacity", 512);
+        metaData.putString("com.mixpanel.android.MPConfig.IngestionQueueFullPolicy", "drop_automatic");
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(512, config.getIngestionQueueCapacity());
+        assertEquals("drop_automatic", config.getIngestionQueueFullPolicy());
+    }
+
+    @Test
+    public void testIngestionQueueCapacityBounds() {
+        Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.IngestionQueueCapacity", 65536);
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(65536, config.getIngestionQueueCapacity());
+
+        metaData.putInt("com.mixpanel.android.MPConfig.IngestionQueueCapacity", 65537);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(0, config.getIngestionQueueCapacity());
+
+        metaData.putInt("com.mixpanel.android.MPConfig.IngestionQueueCapacity", -1);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(0, config.getIngestionQueueCapacity());
+    }
+
+    @Test
+    public void testGroupCommitSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getGroupCommit());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.GroupCommit", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getGroupCommit());
+    }
+
+    @Test
+    public void testKeepDatabaseOpenSettings() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getKeepDatabaseOpen());
+        assertEquals(30000, config.getDatabaseIdleTimeout());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", true);
+        metaData.putInt("com.mixpanel.android.MPConfig.DatabaseIdleTimeout", 5000);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getKeepDatabaseOpen());
+        assertEquals(5000, config.getDatabaseIdleTimeout());
+    }
+
+    @Test
+    public void testStreamingFlushSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getStreamingFlush());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.StreamingFlush", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getStreamingFlush());
+    }
+
+    @Test
+    public void testFlushBatchMaxBytesSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(0, config.getFlushBatchMaxBytes());
+
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchMaxBytes", 512 * 1024);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(512 * 1024, config.getFlushBatchMaxBytes());
+    }
+
+    @Test
+    public void testPipelinedFlushSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getPipelinedFlush());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.PipelinedFlush", false);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getPipelinedFlush());
+    }
+
+    @Test
+    public void testPreferencesWriteDelaySetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(0, config.getPreferencesWriteDelay());
+
+        metaData.putInt("com.mixpanel.android.MPConfig.PreferencesWriteDelay", 500);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertEquals(500, config.getPreferencesWriteDelay());
+    }
+
+    @Test
+    public void testDeferEventMaterializationSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getDeferEventMaterialization());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DeferEventMaterialization", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getDeferEventMaterialization());
+    }
+
+    @Test
+    public void testDeferredStartupSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getDeferredStartup());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DeferredStartup", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getDeferredStartup());
+    }
+
+    @Test
+    public void testIdleMaintenanceSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getIdleMaintenance());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.IdleMaintenance", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getIdleMaintenance());
+    }
+
+    @Test
+    public void testScheduledRetriesSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getScheduledRetries());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.ScheduledRetries", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getScheduledRetries());
+    }
+
+    @Test
+    public void testHostHealthRoutingSetting() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertFalse(config.getHostHealthRouting());
+
+        metaData.putBoolean("com.mixpanel.android.MPConfig.HostHealthRouting", true);
+        config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        assertTrue(config.getHostHealthRouting());
+    }
+
     @Test
     public void testGzipSetting() {
         Bundle metaData = new Bundle();
@@ -191,6 +348,27 @@ public class MPConfigTest {
         assertSame(offlineMode, config.getOfflineMode());
     }
 
+    @Test
+    public void testRemoteServiceFactory() {
+        Bundle metaData = new Bundle();
+        MPConfig config = new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+        RemoteService defaultService = new HttpService();
+
+        // Without a factory the default transport is used
+        assertNull(config.getRemoteServiceFactory());
+        assertSame(defaultService, config.makeRemoteService(defaultService));
+
+        RemoteService custom = new HttpService();
+        RemoteServiceFactory factory = service -> custom;
+        config.setRemoteServiceFactory(factory);
+        assertSame(factory, config.getRemoteServiceFactory());
+        assertSame(custom, config.makeRemoteService(defaultService));
+
+        // A factory that supplies nothing falls back to the default
+        config.setRemoteServiceFactory(service -> null);
+        assertSame(defaultService, config.makeRemoteService(defaultService));
+    }
+
     @Test
     public void testProxyServerInteractor() {
         Bundle metaData = new Bundle();
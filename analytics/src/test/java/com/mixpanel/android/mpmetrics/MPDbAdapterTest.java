@@ -0,0 +1,340 @@
+package com.mixpanel.android.mpmetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class MPDbAdapterTest {
+
+    private static final String TEST_DB = "MPDbAdapterTestDB";
+
+    private MPDbAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        mAdapter = new MPDbAdapter(context, TEST_DB, MPConfig.getInstance(context, null));
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.deleteDB();
+    }
+
+    private static JSONObject record(int index) throws Exception {
+        JSONObject record = new JSONObject();
+        record.put("index", index);
+        return record;
+    }
+
+    @Test
+    public void testAddJSONsWritesAllRecordsInOrder() throws Exception {
+        List<MPDbAdapter.PendingInsert> inserts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            inserts.add(new MPDbAdapter.PendingInsert(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        }
+
+        int[] counts = mAdapter.addJSONs(inserts);
+        assertEquals(5, counts.length);
+        for (int count : counts) {
+            assertEquals(5, count);
+        }
+
+        String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNotNull(data);
+        JSONArray events = new JSONArray(data[1]);
+        assertEquals(5, events.length());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, events.getJSONObject(i).getInt("index"));
+        }
+    }
+
+    @Test
+    public void testAddJSONsCountsPerTableAndToken() throws Exception {
+        mAdapter.addJSON(record(0), "ATOKEN", MPDbAdapter.Table.EVENTS);
+
+        List<MPDbAdapter.PendingInsert> inserts = new ArrayList<>();
+        inserts.add(new MPDbAdapter.PendingInsert(record(1), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        inserts.add(new MPDbAdapter.PendingInsert(record(2), "ATOKEN", MPDbAdapter.Table.PEOPLE));
+        inserts.add(new MPDbAdapter.PendingInsert(record(3), "OTHER", MPDbAdapter.Table.EVENTS));
+        inserts.add(new MPDbAdapter.PendingInsert(record(4), "ATOKEN", MPDbAdapter.Table.EVENTS));
+
+        int[] counts = mAdapter.addJSONs(inserts);
+        assertEquals(3, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(1, counts[2]);
+        assertEquals(3, counts[3]);
+    }
+
+    @Test
+    public void testKeepDatabaseOpen() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", true);
+        MPDbAdapter adapter = new MPDbAdapter(context, TEST_DB + "Open", new MPConfig(metaData, context, null));
+        try {
+            long beforeUse = System.currentTimeMillis();
+            assertEquals(1, adapter.addJSON(record(0), "ATOKEN", MPDbAdapter.Table.EVENTS));
+            assertEquals(2, adapter.addJSON(record(1), "ATOKEN", MPDbAdapter.Table.EVENTS));
+            assertTrue(adapter.getLastUsedTime() >= beforeUse);
+
+            String[] data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNotNull(data);
+            assertEquals("2", data[2]);
+
+            // Closing only drops the connection, the next call reopens it
+            adapter.close();
+            adapter.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+            assertEquals(1, adapter.addJSON(record(2), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    @Test
+    public void testCleanupEventsOnlyRemovesTokenRange() throws Exception {
+        mAdapter.addJSON(record(0), "ATOKEN", MPDbAdapter.Table.EVENTS);
+        mAdapter.addJSON(record(1), "OTHER", MPDbAdapter.Table.EVENTS);
+        String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "OTHER");
+        assertNotNull(data);
+
+        mAdapter.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNull(mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+        assertNotNull(mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "OTHER"));
+    }
+
+    @Test
+    public void testBatchesFollowIdOrderWhenCreatedAtDoesNot() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchSize", 2);
+        MPDbAdapter adapter = new MPDbAdapter(context, TEST_DB + "Order", new MPConfig(metaData, context, null));
+        try {
+            for (int i = 0; i < 4; i++) {
+                adapter.addJSON(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS);
+            }
+            adapter.close();
+
+            // Newer rows get older timestamps, e.g. after the clock was moved back
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                    context.getDatabasePath(TEST_DB + "Order").getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            db.execSQL("UPDATE " + MPDbAdapter.Table.EVENTS.getName() + " SET "
+                    + MPDbAdapter.KEY_CREATED_AT + " = 1000 - _id");
+            db.close();
+
+            // Read the next batch while the first is in flight, then delete the first
+            String[] first = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNotNull(first);
+            String[] second = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", first[0]);
+            assertNotNull(second);
+            adapter.cleanupEvents(first[0], MPDbAdapter.Table.EVENTS, "ATOKEN");
+            adapter.cleanupEvents(second[0], MPDbAdapter.Table.EVENTS, "ATOKEN");
+
+            List<Integer> sent = new ArrayList<>();
+            for (String[] batch : new String[][] {first, second}) {
+                JSONArray records = new JSONArray(batch[1]);
+                for (int i = 0; i < records.length(); i++) {
+                    sent.add(records.getJSONObject(i).getInt("index"));
+                }
+            }
+            assertEquals(Arrays.asList(0, 1, 2, 3), sent);
+            assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    @Test
+    public void testRowCountsAreRecountedAfterClose() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        assertEquals(1, mAdapter.addJSON(record(0), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        mAdapter.close();
+
+        // Written behind the adapter's back: counted only if the adapter queries COUNT(*) again
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                context.getDatabasePath(TEST_DB).getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        ContentValues values = new ContentValues();
+        values.put(MPDbAdapter.KEY_DATA, record(1).toString());
+        values.put(MPDbAdapter.KEY_CREATED_AT, System.currentTimeMillis());
+        values.put(MPDbAdapter.KEY_TOKEN, "ATOKEN");
+        db.insert(MPDbAdapter.Table.EVENTS.getName(), null, values);
+        db.close();
+
+        // The count from before the close is dropped, so the new row is seen
+        assertEquals(3, mAdapter.addJSON(record(2), "ATOKEN", MPDbAdapter.Table.EVENTS));
+    }
+
+    @Test
+    public void testRowCountsFollowInsertsAndDeletes() throws Exception {
+        assertEquals(1, mAdapter.addJSON(record(0), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        assertEquals(2, mAdapter.addJSON(record(1), "ATOKEN", MPDbAdapter.Table.EVENTS));
+        assertEquals(1, mAdapter.addJSON(record(2), "OTHER", MPDbAdapter.Table.EVENTS));
+
+        String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNotNull(data);
+        assertEquals("2", data[2]);
+
+        mAdapter.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertEquals(1, mAdapter.addJSON(record(3), "ATOKEN", MPDbAdapter.Table.EVENTS));
+
+        mAdapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, "OTHER");
+        assertEquals(1, mAdapter.addJSON(record(4), "OTHER", MPDbAdapter.Table.EVENTS));
+
+        // Expiring by time forgets the counters, which are then recounted from the database
+        mAdapter.cleanupEvents(System.currentTimeMillis() + 1000, MPDbAdapter.Table.EVENTS);
+        assertEquals(1, mAdapter.addJSON(record(5), "ATOKEN", MPDbAdapter.Table.EVENTS));
+    }
+
+    @Test
+    public void testExpireInChunks() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mAdapter.addJSON(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS);
+        }
+        final long future = System.currentTimeMillis() + 1000;
+        assertEquals(2, mAdapter.cleanupEvents(future, MPDbAdapter.Table.EVENTS, 2));
+        assertEquals(3, mAdapter.addJSON(record(5), "ATOKEN", MPDbAdapter.Table.EVENTS));
+
+        // The oldest go first
+        assertEquals(1, mAdapter.trimOldest(MPDbAdapter.Table.EVENTS, 1));
+        String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNotNull(data);
+        assertEquals(3, new JSONArray(data[1]).getJSONObject(0).getInt("index"));
+
+        assertEquals(3, mAdapter.cleanupEvents(future, MPDbAdapter.Table.EVENTS, 10));
+        assertNull(mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+    }
+
+    @Test
+    public void testMaintenanceExpiresEveryTable() throws Exception {
+        for (MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            for (int i = 0; i < 3; i++) {
+                mAdapter.addJSON(record(i), "ATOKEN", table);
+            }
+        }
+
+        DatabaseMaintenance maintenance = new DatabaseMaintenance(System.currentTimeMillis() + 1000);
+        int chunks = 0;
+        while (maintenance.runChunk(mAdapter)) {
+            chunks++;
+            assertTrue(chunks < 100);
+        }
+        // Database wasn't created for vacuuming, so nothing past expiring each table
+        assertEquals(MPDbAdapter.Table.values().length - 1, chunks);
+        assertFalse(maintenance.runChunk(mAdapter));
+        for (MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            assertNull(mAdapter.generateDataString(table, "ATOKEN"));
+        }
+    }
+
+    @Test
+    public void testIdleMaintenanceDatabaseVacuums() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.IdleMaintenance", true);
+        MPDbAdapter adapter = new MPDbAdapter(context, TEST_DB + "Vacuum", new MPConfig(metaData, context, null));
+        try {
+            assertTrue(adapter.isIncrementalVacuumEnabled());
+            for (int i = 0; i < 20; i++) {
+                adapter.addJSON(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS);
+            }
+            adapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertEquals(0, adapter.incrementalVacuum(0));
+        } finally {
+            adapter.deleteDB();
+        }
+        assertFalse(mAdapter.isIncrementalVacuumEnabled());
+    }
+
+    @Test
+    public void testFlushBatchMatchesDataString() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mAdapter.addJSON(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS);
+        }
+
+        String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+        FlushBatch batch = mAdapter.generateFlushBatch(MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNotNull(data);
+        assertNotNull(batch);
+        assertEquals(data[0], batch.getLastId());
+        assertEquals(3, batch.getQueueCount());
+        assertEquals(3, batch.getRecordCount());
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        batch.writeJsonTo(json);
+        assertEquals(data[1], new String(json.toByteArray(), StandardCharsets.UTF_8));
+
+        mAdapter.cleanupEvents(batch.getLastId(), MPDbAdapter.Table.EVENTS, "ATOKEN");
+        assertNull(mAdapter.generateFlushBatch(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+    }
+
+    @Test
+    public void testFlushBatchesRespectByteBudget() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        Bundle metaData = new Bundle();
+        // Room for two {"index":N} records plus the brackets and comma, but not three
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchMaxBytes", 30);
+        MPDbAdapter adapter = new MPDbAdapter(context, TEST_DB + "Budget", new MPConfig(metaData, context, null));
+        try {
+            for (int i = 0; i < 5; i++) {
+                adapter.addJSON(record(i), "ATOKEN", MPDbAdapter.Table.EVENTS);
+            }
+
+            String[] data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNotNull(data);
+            assertEquals(2, new JSONArray(data[1]).length());
+            assertEquals("5", data[2]);
+
+            FlushBatch batch = adapter.generateFlushBatch(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNotNull(batch);
+            assertEquals(data[0], batch.getLastId());
+            assertEquals(2, batch.getRecordCount());
+            assertTrue(batch.getPayloadBytes() <= 30);
+
+            // A record bigger than the whole budget is still sent on its own
+            JSONObject large = record(5);
+            large.put("padding", "0123456789012345678901234567890123456789");
+            adapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            adapter.addJSON(large, "ATOKEN", MPDbAdapter.Table.EVENTS);
+            adapter.addJSON(record(6), "ATOKEN", MPDbAdapter.Table.EVENTS);
+            data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN");
+            assertNotNull(data);
+            assertEquals(1, new JSONArray(data[1]).length());
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    @Test
+    public void testUtf8Length() {
+        assertEquals(0, MPDbAdapter.utf8Length(""));
+        assertEquals(3, MPDbAdapter.utf8Length("abc"));
+        assertEquals(2, MPDbAdapter.utf8Length("\u00e9"));
+        assertEquals(3, MPDbAdapter.utf8Length("\u20ac"));
+        assertEquals(4, MPDbAdapter.utf8Length("\ud83d\ude00"));
+    }
+}
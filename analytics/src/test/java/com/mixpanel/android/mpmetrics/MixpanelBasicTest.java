@@ -7,6 +7,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -1025,6 +1026,94 @@ public class MixpanelBasicTest {
     }
   }
 
+  @Test
+  public void testDeferredEventUsesStateFromTrackTime() throws JSONException {
+    final List<AnalyticsMessages.EventDescription> events = new ArrayList<>();
+    final MixpanelAPI api = makeDeferringAPI("DEFERRED STATE TOKEN", events);
+    api.identify("before");
+    api.registerSuperProperties(new JSONObject("{'super':'before'}"));
+    api.timeEvent("deferred");
+    api.track("deferred", new JSONObject("{'thing':'user value'}"));
+
+    // Changes after the event was tracked aren't seen when it's materialized
+    api.identify("after");
+    api.registerSuperProperties(new JSONObject("{'super':'after', 'later':true}"));
+
+    assertEquals(1, events.size());
+    final AnalyticsMessages.EventDescription event = events.get(0);
+    assertTrue(event.isDeferred());
+    assertNull(event.getMessage());
+    final JSONObject properties = event.getProperties();
+    assertEquals("before", properties.getString("distinct_id"));
+    assertEquals("before", properties.getString("super"));
+    assertEquals("user value", properties.getString("thing"));
+    assertTrue(properties.has("$duration"));
+    assertFalse(properties.has("later"));
+    assertSame(properties, event.materializeProperties());
+  }
+
+  @Test
+  public void testDeferredEventCopiesCallerProperties() throws JSONException {
+    final List<AnalyticsMessages.EventDescription> events = new ArrayList<>();
+    final MixpanelAPI api = makeDeferringAPI("DEFERRED COPY TOKEN", events);
+    final JSONObject props = new JSONObject();
+    props.put("thing", "at track time");
+    api.track("deferred", props);
+
+    props.put("thing", "changed afterwards");
+    props.put("added", true);
+
+    assertEquals(1, events.size());
+    final JSONObject properties = events.get(0).getProperties();
+    assertEquals("at track time", properties.getString("thing"));
+    assertFalse(properties.has("added"));
+  }
+
+  @Test
+  public void testListenerPropertiesAreCopiedFromThePreparedEvent() throws JSONException {
+    final JSONObject event = new JSONObject();
+    final JSONObject properties = new JSONObject();
+    properties.put("thing", "prepared");
+    properties.put("nested", new JSONObject().put("inner", 1));
+    event.put("event", "an event");
+    event.put("properties", properties);
+
+    final JSONObject listenerProperties = AnalyticsMessages.listenerPropertiesOf(event);
+    listenerProperties.put("thing", "changed by a listener");
+    listenerProperties.getJSONObject("nested").put("inner", 2);
+    listenerProperties.put("added", true);
+
+    final JSONObject written = event.getJSONObject("properties");
+    assertEquals("prepared", written.getString("thing"));
+    assertEquals(1, written.getJSONObject("nested").getInt("inner"));
+    assertFalse(written.has("added"));
+  }
+
+  // Collects the "deferred" events tracked with DeferEventMaterialization on
+  private MixpanelAPI makeDeferringAPI(
+      String token, final List<AnalyticsMessages.EventDescription> events) {
+    final Bundle metaData = new Bundle();
+    metaData.putBoolean("com.mixpanel.android.MPConfig.DeferEventMaterialization", true);
+    final MPConfig config =
+        new MPConfig(metaData, ApplicationProvider.getApplicationContext(), null);
+    final AnalyticsMessages listener =
+        new AnalyticsMessages(ApplicationProvider.getApplicationContext(), config) {
+          @Override
+          public void eventsMessage(EventDescription heard) {
+            if ("deferred".equals(heard.getEventName())) {
+              events.add(heard);
+            }
+          }
+        };
+    return new TestUtils.CleanMixpanelAPI(
+        ApplicationProvider.getApplicationContext(), mMockPreferences, token, config) {
+      @Override
+      protected AnalyticsMessages getAnalyticsMessages() {
+        return listener;
+      }
+    };
+  }
+
   @Test
   public void testTrackCharge() {
     final List<AnalyticsMessages.PeopleDescription> messages = new ArrayList<>();
@@ -1705,6 +1794,67 @@ public class MixpanelBasicTest {
     assertTrue(found.getJSONObject("properties").has("$bluetooth_version"));
   }
 
+  @Test
+  public void testTrackWithEventBuilder() throws InterruptedException, JSONException {
+    final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+    Thread testThread =
+        new Thread(
+            () -> {
+              final MPDbAdapter dbMock =
+                  new MPDbAdapter(
+                      ApplicationProvider.getApplicationContext(),
+                      MPConfig.getInstance(ApplicationProvider.getApplicationContext(), null)) {
+                    @Override
+                    public int addJSON(JSONObject message, String token, MPDbAdapter.Table table) {
+                      messages.add(message);
+                      return 1;
+                    }
+                  };
+
+              final AnalyticsMessages analyticsMessages =
+                  new AnalyticsMessages(
+                      ApplicationProvider.getApplicationContext(),
+                      MPConfig.getInstance(ApplicationProvider.getApplicationContext(), null)) {
+                    @Override
+                    public MPDbAdapter makeDbAdapter(Context context) {
+                      return dbMock;
+                    }
+                  };
+
+              MixpanelAPI mixpanel =
+                  new TestUtils.CleanMixpanelAPI(
+                      ApplicationProvider.getApplicationContext(), mMockPreferences, "TEST TOKEN") {
+                    @Override
+                    protected AnalyticsMessages getAnalyticsMessages() {
+                      return analyticsMessages;
+                    }
+                  };
+              mixpanel.reset();
+              mixpanel.identify("builder user");
+              mixpanel
+                  .event("built event")
+                  .put("count", 3)
+                  .put("price", 4.5)
+                  .put("gift", true)
+                  .put("sku", "ABC")
+                  .track();
+            });
+    testThread.start();
+
+    JSONObject found = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+    while (found != null && !"built event".equals(found.getString("event"))) {
+      found = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+    assertNotNull(found);
+    final JSONObject properties = found.getJSONObject("properties");
+    assertEquals(3, properties.getLong("count"));
+    assertEquals(4.5, properties.getDouble("price"), 0);
+    assertTrue(properties.getBoolean("gift"));
+    assertEquals("ABC", properties.getString("sku"));
+    assertEquals("builder user", properties.getString("distinct_id"));
+    assertEquals("TEST TOKEN", properties.getString("token"));
+  }
+
   @Test
   public void testAlias() {
     final RemoteService mockPoster =
@@ -2122,6 +2272,39 @@ public class MixpanelBasicTest {
     assertNull(storedJsons.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testGetInstanceFromManyThreads() throws InterruptedException {
+    final String token = "getInstance token " + UUID.randomUUID();
+    final BlockingQueue<MixpanelAPI> found = new LinkedBlockingQueue<MixpanelAPI>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(
+          new Thread(
+              () ->
+                  found.add(
+                      MixpanelAPI.getInstance(
+                          ApplicationProvider.getApplicationContext(), token, false))));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    final MixpanelAPI instance =
+        MixpanelAPI.getInstance(ApplicationProvider.getApplicationContext(), token, false);
+    assertNotNull(instance);
+    assertEquals(4, found.size());
+    for (MixpanelAPI other : found) {
+      assertSame(instance, other);
+    }
+
+    final List<MixpanelAPI> visited = new ArrayList<MixpanelAPI>();
+    MixpanelAPI.allInstances(visited::add);
+    assertTrue(visited.contains(instance));
+  }
+
   private Future<SharedPreferences> mMockPreferences;
 
   private static final int POLL_WAIT_SECONDS = 10;
@@ -15,11 +15,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
@@ -27,6 +33,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -95,6 +102,52 @@ public class PersistentIdentityTest {
         assertEquals("BOO!", propsAfterChange.get("mystery"));
     }
 
+    @Test
+    public void testBasePropertiesMergeReferrerAndSuperProperties() throws JSONException {
+        Map<String, Object> base = mPersistentIdentity.getBaseProperties();
+        assertEquals("superprops", base.get("thing"));
+        assertEquals("REFERRER", base.get("referrer"));
+        assertSame(base, mPersistentIdentity.getBaseProperties());
+
+        JSONObject props = new JSONObject();
+        props.put("referrer", "SUPER REFERRER");
+        props.put("added", 1);
+        mPersistentIdentity.registerSuperProperties(props);
+
+        Map<String, Object> updated = mPersistentIdentity.getBaseProperties();
+        assertEquals("SUPER REFERRER", updated.get("referrer"));
+        assertEquals(1, updated.get("added"));
+        assertEquals("SOURCE VALUE", updated.get("utm_source"));
+        assertFalse(base.containsKey("added"));
+
+        mPersistentIdentity.unregisterSuperProperty("added");
+        assertFalse(mPersistentIdentity.getBaseProperties().containsKey("added"));
+    }
+
+    @Test
+    public void testDelayedWritesAreFlushed() throws JSONException {
+        SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        Future<SharedPreferences> referrerLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_REFERRER_PREFERENCES, null);
+        Future<SharedPreferences> testLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_PREFERENCES, null);
+        Future<SharedPreferences> timeEventsLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_TIME_EVENTS_PREFERENCES, null);
+        Future<SharedPreferences> mixpanelLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_MIXPANEL_PREFERENCES, null);
+        PersistentIdentity pi = new PersistentIdentity(referrerLoader, testLoader, timeEventsLoader, mixpanelLoader, null, TimeUnit.MINUTES.toMillis(1));
+
+        JSONObject props = new JSONObject();
+        props.put("delayed", "value");
+        pi.registerSuperProperties(props);
+        pi.setEventsDistinctId("DELAYED ID");
+
+        // Readers see the changes right away, the file only after a flush
+        assertEquals("DELAYED ID", pi.getEventsDistinctId());
+        final SharedPreferences testPreferences = ApplicationProvider.getApplicationContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        assertEquals("EVENTS DISTINCT ID", testPreferences.getString("events_distinct_id", null));
+
+        pi.flushPendingWrites();
+        assertEquals("DELAYED ID", testPreferences.getString("events_distinct_id", null));
+        assertEquals("value", new JSONObject(testPreferences.getString("super_properties", "{}")).getString("delayed"));
+    }
+
     @Test
     public void testUnsetEventsId() {
         final SharedPreferences testPreferences = ApplicationProvider.getApplicationContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
@@ -277,6 +330,44 @@ public class PersistentIdentityTest {
         assertFalse(afterRemove.containsKey("timed_event"));
     }
 
+    @Test
+    public void testUntimedEventsDoNotWritePreferences() throws Exception {
+        final SharedPreferences timePrefs = ApplicationProvider.getApplicationContext()
+                .getSharedPreferences(TEST_TIME_EVENTS_PREFERENCES, Context.MODE_PRIVATE);
+        final AtomicInteger edits = new AtomicInteger();
+        final SharedPreferences countingPrefs = (SharedPreferences) Proxy.newProxyInstance(
+                SharedPreferences.class.getClassLoader(),
+                new Class<?>[] {SharedPreferences.class},
+                (proxy, method, args) -> {
+                    if ("edit".equals(method.getName())) {
+                        edits.incrementAndGet();
+                    }
+                    return method.invoke(timePrefs, args);
+                });
+        final FutureTask<SharedPreferences> timeEventsLoader = new FutureTask<>(() -> countingPrefs);
+        timeEventsLoader.run();
+
+        SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        Future<SharedPreferences> referrerLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_REFERRER_PREFERENCES, null);
+        Future<SharedPreferences> testLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_PREFERENCES, null);
+        Future<SharedPreferences> mixpanelLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_MIXPANEL_PREFERENCES, null);
+        final PersistentIdentity pi = new PersistentIdentity(referrerLoader, testLoader, timeEventsLoader, mixpanelLoader, null);
+
+        // Off the main thread the cache loads synchronously
+        Thread load = new Thread(pi::getTimeEvents);
+        load.start();
+        load.join();
+
+        pi.removeTimedEvent("never_timed");
+        pi.clearTimedEvents();
+        assertEquals(0, edits.get());
+
+        pi.addTimeEvent("timed", 1000L);
+        pi.removeTimedEvent("timed");
+        pi.removeTimedEvent("timed");
+        assertEquals(2, edits.get());
+    }
+
     // --- getTimeEvents / loadTimeEventsCache ---
 
     @Test
@@ -396,6 +487,64 @@ public class PersistentIdentityTest {
         assertFalse(mPersistentIdentity.getOptOutTracking("opt_token"));
     }
 
+    @Test(timeout = 5000)
+    public void testStoredOptOutWinsBeforePreferencesLoad() throws Exception {
+        ApplicationProvider.getApplicationContext()
+                .getSharedPreferences(TEST_MIXPANEL_PREFERENCES, Context.MODE_PRIVATE)
+                .edit().putBoolean("opt_out_pending_token", true).commit();
+
+        // Neither the preferences nor the preload have run yet
+        final FutureTask<SharedPreferences> mixpanelLoader = new FutureTask<>(() ->
+                ApplicationProvider.getApplicationContext().getSharedPreferences(TEST_MIXPANEL_PREFERENCES, Context.MODE_PRIVATE));
+        final List<Runnable> pending = new ArrayList<>();
+        final PersistentIdentity pi = newIdentityWithMixpanelPrefs(mixpanelLoader);
+        pi.preloadOptOutTracking("pending_token", pending::add);
+        assertEquals(1, pending.size());
+
+        final AtomicReference<Boolean> answer = new AtomicReference<>();
+        final Thread caller = new Thread(() -> answer.set(pi.getOptOutTracking("pending_token")));
+        caller.start();
+        caller.join(200);
+        // The caller waits for the stored flag rather than guessing that the user is opted in
+        assertTrue(caller.isAlive());
+        assertNull(answer.get());
+
+        mixpanelLoader.run();
+        caller.join();
+        assertEquals(Boolean.TRUE, answer.get());
+
+        pending.get(0).run();
+        assertTrue(pi.getOptOutTracking("pending_token"));
+    }
+
+    @Test(timeout = 5000)
+    public void testPreloadKeepsAFlagSetWhileItRuns() {
+        ApplicationProvider.getApplicationContext()
+                .getSharedPreferences(TEST_MIXPANEL_PREFERENCES, Context.MODE_PRIVATE)
+                .edit().putBoolean("opt_out_set_token", true).commit();
+        final FutureTask<SharedPreferences> mixpanelLoader = new FutureTask<>(() ->
+                ApplicationProvider.getApplicationContext().getSharedPreferences(TEST_MIXPANEL_PREFERENCES, Context.MODE_PRIVATE));
+        final List<Runnable> pending = new ArrayList<>();
+        final PersistentIdentity pi = newIdentityWithMixpanelPrefs(mixpanelLoader);
+        pi.preloadOptOutTracking("set_token", pending::add);
+
+        mixpanelLoader.run();
+        pending.get(0).run();
+        assertTrue(pi.getOptOutTracking("set_token"));
+
+        pi.setOptOutTracking(false, "set_token");
+        pending.get(0).run();
+        assertFalse(pi.getOptOutTracking("set_token"));
+    }
+
+    private PersistentIdentity newIdentityWithMixpanelPrefs(Future<SharedPreferences> mixpanelLoader) {
+        SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        Future<SharedPreferences> referrerLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_REFERRER_PREFERENCES, null);
+        Future<SharedPreferences> testLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_PREFERENCES, null);
+        Future<SharedPreferences> timeEventsLoader = loader.loadPreferences(ApplicationProvider.getApplicationContext(), TEST_TIME_EVENTS_PREFERENCES, null);
+        return new PersistentIdentity(referrerLoader, testLoader, timeEventsLoader, mixpanelLoader, null);
+    }
+
     // --- hasOptOutFlag / removeOptOutFlag ---
 
     @Test
@@ -452,6 +601,39 @@ public class PersistentIdentityTest {
         assertEquals(mPersistentIdentity.getEventsDistinctId(), userId);
     }
 
+    // --- identity snapshots ---
+
+    @Test
+    public void testIdentitySnapshotIsReplacedNotMutated() {
+        PersistentIdentity.Identity before = mPersistentIdentity.getIdentity();
+        assertSame(before, mPersistentIdentity.getIdentity());
+        assertEquals("EVENTS DISTINCT ID", before.getEventsDistinctId());
+        assertNull(before.getEventsUserId());
+
+        mPersistentIdentity.setEventsDistinctId("NEW ID");
+        mPersistentIdentity.markEventsUserIdPresent();
+
+        PersistentIdentity.Identity after = mPersistentIdentity.getIdentity();
+        assertEquals("NEW ID", after.getEventsDistinctId());
+        assertEquals("NEW ID", after.getEventsUserId());
+        assertEquals("PEOPLE DISTINCT ID", after.getPeopleDistinctId());
+        assertEquals("EVENTS DISTINCT ID", before.getEventsDistinctId());
+        assertNull(before.getEventsUserId());
+    }
+
+    @Test
+    public void testOptOutIsPartOfSnapshot() {
+        assertFalse(mPersistentIdentity.getOptOutTracking("opt_token"));
+        PersistentIdentity.Identity optedIn = mPersistentIdentity.getIdentity();
+
+        mPersistentIdentity.setOptOutTracking(true, "opt_token");
+        assertTrue(mPersistentIdentity.getOptOutTracking("opt_token"));
+        assertEquals(optedIn.getEventsDistinctId(), mPersistentIdentity.getEventsDistinctId());
+
+        mPersistentIdentity.setEventsDistinctId("NEW ID");
+        assertTrue(mPersistentIdentity.getOptOutTracking("opt_token"));
+    }
+
     // --- helper to reset static fields ---
 
     private void resetStaticField(String fieldName) throws Exception {
@@ -0,0 +1,199 @@
+package com.mixpanel.android.mpmetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.ProxyServerInteractor;
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+@RunWith(RobolectricTestRunner.class)
+public class PipelinedFlushTest {
+
+    private static final String TOKEN = "PIPELINED TOKEN";
+
+    private MPDbAdapter mAdapter;
+    private AnalyticsMessages mMessages;
+    private BlockingQueue<Integer> mSent;
+    private AtomicInteger mFailOnRequest;
+    private volatile CountDownLatch mRequestStarted;
+    private volatile CountDownLatch mReleaseRequest;
+    private volatile CountDownLatch mEventInserted;
+
+    @Before
+    public void setUp() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        final Bundle metaData = new Bundle();
+        // PipelinedFlush is left at its default, which is on
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushBatchSize", 2);
+        final MPConfig config = new MPConfig(metaData, context, null);
+
+        mSent = new LinkedBlockingQueue<>();
+        mFailOnRequest = new AtomicInteger(-1);
+        mRequestStarted = new CountDownLatch(1);
+        mReleaseRequest = new CountDownLatch(0);
+        mEventInserted = new CountDownLatch(1);
+        mAdapter = new MPDbAdapter(context, "PipelinedFlushTestDB", config) {
+            @Override
+            public int addJSON(JSONObject j, String token, Table table) {
+                final int count = super.addJSON(j, token, table);
+                mEventInserted.countDown();
+                return count;
+            }
+        };
+
+        final AtomicInteger requests = new AtomicInteger();
+        final RemoteService poster = new HttpService() {
+            @Override
+            public RemoteService.RequestResult performRequest(
+                    @NonNull String endpointUrl,
+                    @Nullable ProxyServerInteractor interactor,
+                    @Nullable Map<String, Object> params,
+                    @Nullable Map<String, String> headers,
+                    @Nullable byte[] requestBodyBytes,
+                    @Nullable SSLSocketFactory socketFactory) throws IOException {
+                mRequestStarted.countDown();
+                try {
+                    mReleaseRequest.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (requests.getAndIncrement() == mFailOnRequest.get()) {
+                    throw new IOException("Simulated failure");
+                }
+                try {
+                    final JSONArray batch = new JSONArray(Base64Coder.decodeString(params.get("data").toString()));
+                    for (int i = 0; i < batch.length(); i++) {
+                        mSent.add(batch.getJSONObject(i).getInt("index"));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                }
+                return RemoteService.RequestResult.success("1\n".getBytes(), endpointUrl);
+            }
+        };
+
+        mMessages = new AnalyticsMessages(context, config) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.deleteDB();
+    }
+
+    private void addEvents(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("index", i);
+            mAdapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS);
+        }
+    }
+
+    @Test
+    public void testEnqueueIsNotBlockedByRequestInFlight() throws Exception {
+        addEvents(1);
+        mEventInserted = new CountDownLatch(1);
+        mReleaseRequest = new CountDownLatch(1);
+        try {
+            mMessages.postToServer(new AnalyticsMessages.MixpanelDescription(TOKEN));
+            assertTrue(mRequestStarted.await(2, TimeUnit.SECONDS));
+
+            mMessages.eventsMessage(new AnalyticsMessages.EventDescription(
+                    "Tracked during flush", new JSONObject(), TOKEN, false, new JSONObject()));
+            assertTrue(mEventInserted.await(2, TimeUnit.SECONDS));
+        } finally {
+            mReleaseRequest.countDown();
+        }
+    }
+
+    private void flushAndWait(int expectedSent) throws InterruptedException {
+        mMessages.postToServer(new AnalyticsMessages.MixpanelDescription(TOKEN));
+        for (int i = 0; i < 50 && mSent.size() < expectedSent; i++) {
+            idleAllLoopers();
+            Thread.sleep(20);
+        }
+        // Let the last acknowledged batch be deleted
+        idleAllLoopers();
+        Thread.sleep(50);
+        idleAllLoopers();
+    }
+
+    private void idleAllLoopers() {
+        ShadowLooper.idleMainLooper();
+        for (Looper looper : ShadowLooper.getAllLoopers()) {
+            try {
+                Shadows.shadowOf(looper).idle();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testSendsEveryBatchInOrder() throws Exception {
+        addEvents(5);
+        flushAndWait(5);
+
+        final List<Integer> sent = new ArrayList<>(mSent);
+        assertEquals(5, sent.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), sent.get(i));
+        }
+        assertNull(mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN));
+    }
+
+    @Test
+    public void testFailedBatchAndLaterBatchesStayQueued() throws Exception {
+        mFailOnRequest.set(1);
+        addEvents(5);
+        flushAndWait(2);
+
+        assertEquals(2, mSent.size());
+        final String[] remaining = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN);
+        assertNotNull(remaining);
+        assertEquals("3", remaining[2]);
+        assertEquals(2, new JSONArray(remaining[1]).getJSONObject(0).getInt("index"));
+    }
+}
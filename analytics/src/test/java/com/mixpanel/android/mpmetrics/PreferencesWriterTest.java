@@ -0,0 +1,67 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PreferencesWriterTest {
+
+    @Test
+    public void testWritesImmediatelyWithoutDelay() {
+        final List<Boolean> writes = new ArrayList<>();
+        PreferencesWriter writer = new PreferencesWriter(0);
+        writer.schedule("key", writes::add);
+        writer.schedule("key", writes::add);
+
+        assertEquals(2, writes.size());
+        assertFalse(writes.get(0));
+        assertFalse(writer.hasPendingWrites());
+    }
+
+    @Test
+    public void testCoalescesWritesWithinDelay() throws InterruptedException {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch written = new CountDownLatch(2);
+        PreferencesWriter writer = new PreferencesWriter(50);
+        for (int i = 0; i < 10; i++) {
+            final String value = "first " + i;
+            writer.schedule("first", synchronous -> {
+                writes.add(value);
+                written.countDown();
+            });
+        }
+        writer.schedule("second", synchronous -> {
+            writes.add("second");
+            written.countDown();
+        });
+        assertTrue(writer.hasPendingWrites());
+
+        assertTrue(written.await(2, TimeUnit.SECONDS));
+        assertEquals(2, writes.size());
+        assertEquals("first 9", writes.get(0));
+        assertEquals("second", writes.get(1));
+        assertFalse(writer.hasPendingWrites());
+    }
+
+    @Test
+    public void testFlushWritesPendingSynchronously() {
+        final List<Boolean> writes = new ArrayList<>();
+        PreferencesWriter writer = new PreferencesWriter(TimeUnit.MINUTES.toMillis(1));
+        writer.schedule("key", writes::add);
+        assertTrue(writes.isEmpty());
+
+        writer.flush();
+        assertEquals(1, writes.size());
+        assertTrue(writes.get(0));
+
+        // Nothing is left for the scheduled run, or a second flush
+        writer.flush();
+        assertEquals(1, writes.size());
+    }
+}
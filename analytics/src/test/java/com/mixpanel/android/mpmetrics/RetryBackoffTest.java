@@ -0,0 +1,47 @@
+package com.mixpanel.android.mpmetrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RetryBackoffTest {
+
+  @Test
+  public void testQuickRetriesThenExponentialToCap() {
+    final RetryBackoff backoff = new RetryBackoff(2, 100, 60000, 600000, new Random(1));
+    assertEquals(100, backoff.ceilingMillis(0));
+    assertEquals(200, backoff.ceilingMillis(1));
+    assertEquals(60000, backoff.ceilingMillis(2));
+    assertEquals(120000, backoff.ceilingMillis(3));
+    assertEquals(480000, backoff.ceilingMillis(5));
+    assertEquals(600000, backoff.ceilingMillis(6));
+    assertEquals(600000, backoff.ceilingMillis(1000));
+  }
+
+  @Test
+  public void testDelaysAreJitteredWithinTheCeiling() {
+    final RetryBackoff backoff = new RetryBackoff(2, 100, 60000, 600000, new Random(42));
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (int i = 0; i < 1000; i++) {
+      final long delay = backoff.delayMillis(3, 0);
+      assertTrue(delay >= 0 && delay <= 120000);
+      min = Math.min(min, delay);
+      max = Math.max(max, delay);
+    }
+    // Full jitter spreads retries over the whole range rather than clustering at the ceiling
+    assertTrue(min < 12000);
+    assertTrue(max > 108000);
+  }
+
+  @Test
+  public void testRetryAfterIsHonoredUpToTheCap() {
+    final RetryBackoff backoff = new RetryBackoff(2, 100, 60000, 600000, new Random(7));
+    for (int i = 0; i < 100; i++) {
+      assertTrue(backoff.delayMillis(0, 30000) >= 30000);
+    }
+    assertEquals(600000, backoff.delayMillis(0, 3600000));
+  }
+}
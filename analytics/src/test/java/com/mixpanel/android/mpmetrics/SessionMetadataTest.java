@@ -4,6 +4,13 @@ import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.*;
 
 public class SessionMetadataTest {
@@ -181,6 +188,40 @@ public class SessionMetadataTest {
                 sessionFromEvent, sessionFromPeople);
     }
 
+    @Test
+    public void testConcurrentEventsGetDistinctSequenceIds() throws Exception {
+        final int threads = 4;
+        final int perThread = 500;
+        final Set<Long> seqIds = Collections.synchronizedSet(new HashSet<Long>());
+        final Set<String> eventIds = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        JSONObject metadata = mSessionMetadata.getMetadataForEvent();
+                        seqIds.add(metadata.getLong("$mp_session_seq_id"));
+                        eventIds.add(metadata.getString("$mp_event_id"));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * perThread, seqIds.size());
+        assertEquals(threads * perThread, eventIds.size());
+        assertEquals(threads * perThread, mSessionMetadata.getMetadataForEvent().getLong("$mp_session_seq_id"));
+    }
+
     private static void assertValidHexString(String value, String fieldName) {
         assertNotNull(fieldName + " should not be null", value);
         assertFalse(fieldName + " should not be empty", value.isEmpty());
@@ -0,0 +1,121 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class StartupTraceTest {
+
+    @Test
+    public void testRecordsStagesInOrder() throws InterruptedException {
+        StartupTrace trace = new StartupTrace("test");
+        trace.begin("first");
+        Thread.sleep(5);
+        trace.end();
+        trace.begin("second");
+        trace.end();
+        trace.log("phase");
+
+        Map<String, Long> stages = trace.getStageNanos();
+        assertEquals(Arrays.asList("first", "second"), new ArrayList<>(stages.keySet()));
+        assertTrue(stages.get("first") >= 5000000L);
+        assertTrue(stages.get("second") >= 0);
+
+        // Logging doesn't forget stages
+        trace.log("again");
+        assertEquals(2, trace.getStageNanos().size());
+    }
+
+    @Test
+    public void testStageEndsWhenItThrows() {
+        StartupTrace trace = new StartupTrace("test");
+        try {
+            trace.run("failing", () -> {
+                throw new IllegalStateException("boom");
+            });
+            fail("Expected the stage to throw");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals("value", trace.call("producing", () -> "value"));
+        assertEquals(Arrays.asList("failing", "producing"), new ArrayList<>(trace.getStageNanos().keySet()));
+    }
+
+    @Test
+    public void testDeferredStartupQueuesAutomaticEventsFirst() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DeferredStartup", true);
+        final MPConfig config = new MPConfig(metaData, context, null);
+
+        final List<String> queued = new ArrayList<>();
+        final AnalyticsMessages messages = new AnalyticsMessages(context, config) {
+            @Override
+            public void eventsMessage(EventDescription heard) {
+                queued.add(heard.getEventName());
+            }
+
+            @Override
+            public void checkFirstLaunchMessage(FirstLaunchDescription heard) {
+                queued.add("first launch check");
+            }
+        };
+        final MixpanelAPI mixpanel = new MixpanelAPI(
+                context,
+                new TestUtils.EmptyPreferences(context),
+                "Deferred startup token",
+                config,
+                new MixpanelOptions.Builder().build(),
+                true) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+
+            @Override
+            /* package */ boolean sendAppOpen() {
+                return true;
+            }
+        };
+        mixpanel.track("user event");
+
+        assertEquals(Arrays.asList("first launch check", "$app_open", "user event"), queued);
+        Map<String, Long> stages = mixpanel.getStartupTrace().getStageNanos();
+        assertTrue(stages.containsKey("automatic events"));
+        assertFalse(stages.containsKey("session replay"));
+
+        ShadowLooper.idleMainLooper();
+        assertTrue(mixpanel.getStartupTrace().getStageNanos().containsKey("session replay"));
+    }
+
+    @Test
+    public void testConstructionIsTraced() {
+        MixpanelAPI mixpanel = new TestUtils.CleanMixpanelAPI(
+                ApplicationProvider.getApplicationContext(),
+                new TestUtils.EmptyPreferences(ApplicationProvider.getApplicationContext()),
+                "Startup trace token");
+
+        Map<String, Long> stages = mixpanel.getStartupTrace().getStageNanos();
+        assertTrue(stages.containsKey("device info"));
+        assertTrue(stages.containsKey("identity"));
+        assertTrue(stages.containsKey("feature flags"));
+        assertTrue(stages.containsKey("automatic events"));
+        // DeferredStartup is off by default, so secondary work ran in the constructor
+        assertTrue(stages.containsKey("session replay"));
+    }
+}
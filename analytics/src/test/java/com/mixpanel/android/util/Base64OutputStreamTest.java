@@ -0,0 +1,64 @@
+package com.mixpanel.android.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class Base64OutputStreamTest {
+
+    private static String encode(byte[] input, boolean formEncode) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64OutputStream encoder = new Base64OutputStream(out, formEncode);
+        encoder.write(input);
+        encoder.close();
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testMatchesBase64Coder() throws IOException {
+        String[] inputs = {"", "f", "fo", "foo", "foob", "fooba", "foobar", "Hello, Mixpanel!"};
+        for (String input : inputs) {
+            byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+            assertEquals(new String(Base64Coder.encode(bytes)), encode(bytes, false));
+        }
+    }
+
+    @Test
+    public void testSingleByteWritesMatchBulkWrites() throws IOException {
+        byte[] input = new byte[256];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64OutputStream encoder = new Base64OutputStream(out, false);
+        for (byte b : input) {
+            encoder.write(b);
+        }
+        encoder.finish();
+        assertEquals(new String(Base64Coder.encode(input)), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testFormEncodingEscapesReservedCharacters() throws IOException {
+        // Encodes to "+/+/" and "Pz8=", covering every character that needs escaping
+        byte[] input = {(byte) 0xfb, (byte) 0xff, (byte) 0xbf, '?', '?'};
+        String plain = new String(Base64Coder.encode(input));
+        assertEquals(URLEncoder.encode(plain, "UTF-8"), encode(input, true));
+        assertEquals("%2B%2F%2B%2FPz8%3D", encode(input, true));
+    }
+
+    @Test
+    public void testFinishIsIdempotent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64OutputStream encoder = new Base64OutputStream(out, false);
+        encoder.write('f');
+        encoder.finish();
+        encoder.finish();
+        assertEquals("Zg==", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
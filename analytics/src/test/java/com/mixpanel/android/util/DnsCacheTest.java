@@ -0,0 +1,144 @@
+package com.mixpanel.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+  private long mNow = 1000;
+
+  private DnsCache cache(final AtomicInteger lookups) {
+    return new DnsCache(
+        100,
+        10,
+        host -> {
+          lookups.incrementAndGet();
+          if (host.startsWith("bad")) {
+            throw new UnknownHostException(host);
+          }
+          return InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1});
+        }) {
+      @Override
+      long now() {
+        return mNow;
+      }
+    };
+  }
+
+  @Test
+  public void testResolvesOncePerTtl() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    final DnsCache cache = cache(lookups);
+
+    final InetAddress first = cache.lookup("api.example.com");
+    mNow += 99;
+    assertSame(first, cache.lookup("api.example.com"));
+    assertEquals(1, lookups.get());
+
+    cache.lookup("other.example.com");
+    assertEquals(2, lookups.get());
+
+    mNow += 1;
+    assertEquals("10.0.0.1", cache.lookup("api.example.com").getHostAddress());
+    assertEquals(3, lookups.get());
+  }
+
+  @Test
+  public void testCachesFailuresForNegativeTtl() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    final DnsCache cache = cache(lookups);
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        cache.lookup("bad.example.com");
+        fail("Expected UnknownHostException");
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    assertEquals(1, lookups.get());
+
+    mNow += 10;
+    try {
+      cache.lookup("bad.example.com");
+      fail("Expected UnknownHostException");
+    } catch (UnknownHostException e) {
+      // expected
+    }
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void testCachedAddressNeverResolves() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    final DnsCache cache = cache(lookups);
+
+    assertNull(cache.cachedAddress("api.example.com"));
+    final InetAddress resolved = cache.lookup("api.example.com");
+
+    // Still answered once expired, the address is only used in error reports
+    mNow += 1000;
+    assertSame(resolved, cache.cachedAddress("api.example.com"));
+    try {
+      cache.lookup("bad.example.com");
+      fail("Expected UnknownHostException");
+    } catch (UnknownHostException e) {
+      // expected
+    }
+    assertNull(cache.cachedAddress("bad.example.com"));
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void testConcurrentLookupsShareOneResolution() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    final CountDownLatch resolving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final DnsCache cache =
+        new DnsCache(
+            TimeUnit.MINUTES.toMillis(1),
+            0,
+            host -> {
+              lookups.incrementAndGet();
+              resolving.countDown();
+              try {
+                release.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              return InetAddress.getByAddress(host, new byte[] {10, 0, 0, 2});
+            });
+
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  cache.lookup("slow.example.com");
+                } catch (UnknownHostException e) {
+                  throw new RuntimeException(e);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    resolving.await(5, TimeUnit.SECONDS);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, lookups.get());
+  }
+}
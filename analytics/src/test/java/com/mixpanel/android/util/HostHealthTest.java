@@ -0,0 +1,162 @@
+package com.mixpanel.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostHealthTest {
+
+  private static final String HOST = "api.example.com";
+
+  private long mNow = 1000;
+  private int mSavedLogLevel;
+
+  private final HostHealth mHealth =
+      new HostHealth(100, 400) {
+        @Override
+        long now() {
+          return mNow;
+        }
+      };
+
+  @Before
+  public void setUp() {
+    mSavedLogLevel = MPLog.getLevel();
+    MPLog.setLevel(MPLog.NONE);
+  }
+
+  @After
+  public void tearDown() {
+    MPLog.setLevel(mSavedLogLevel);
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    mHealth.recordFailure(HOST, 2000);
+    mHealth.recordFailure(HOST, 2000);
+    assertTrue(mHealth.allowRequest(HOST));
+    mHealth.recordFailure(HOST, 2000);
+    assertEquals(HostHealth.State.OPEN, mHealth.getState(HOST));
+    assertFalse(mHealth.allowRequest(HOST));
+  }
+
+  @Test
+  public void testOpensWhenSuccessRateDrops() {
+    // Never three failures in a row, but failing more often than not
+    for (int i = 0; i < 36 && mHealth.getState(HOST) == HostHealth.State.CLOSED; i++) {
+      if (i % 3 == 2) {
+        mHealth.recordSuccess(HOST, 50);
+      } else {
+        mHealth.recordFailure(HOST, 50);
+      }
+    }
+    assertEquals(HostHealth.State.OPEN, mHealth.getState(HOST));
+    assertTrue(mHealth.getSuccessRate(HOST) < 0.5);
+  }
+
+  @Test
+  public void testHalfOpenLetsOneProbeThrough() {
+    openCircuit();
+    mNow += 100;
+    assertTrue(mHealth.allowRequest(HOST));
+    assertEquals(HostHealth.State.HALF_OPEN, mHealth.getState(HOST));
+    assertFalse(mHealth.allowRequest(HOST));
+
+    mHealth.recordSuccess(HOST, 30);
+    assertEquals(HostHealth.State.CLOSED, mHealth.getState(HOST));
+    assertTrue(mHealth.allowRequest(HOST));
+  }
+
+  @Test
+  public void testFailedProbesBackOff() {
+    openCircuit();
+    mNow += 100;
+    assertTrue(mHealth.allowRequest(HOST));
+    mHealth.recordFailure(HOST, 2000);
+    assertEquals(HostHealth.State.OPEN, mHealth.getState(HOST));
+
+    mNow += 199;
+    assertFalse(mHealth.allowRequest(HOST));
+    mNow += 1;
+    assertTrue(mHealth.allowRequest(HOST));
+    mHealth.recordFailure(HOST, 2000);
+
+    // Capped at 400ms
+    mNow += 399;
+    assertFalse(mHealth.allowRequest(HOST));
+    mNow += 1;
+    assertTrue(mHealth.allowRequest(HOST));
+  }
+
+  @Test
+  public void testTracksLatency() {
+    mHealth.recordSuccess(HOST, 100);
+    assertEquals(100, mHealth.getLatencyMillis(HOST), 0.001);
+    mHealth.recordSuccess(HOST, 600);
+    assertEquals(200, mHealth.getLatencyMillis(HOST), 0.001);
+  }
+
+  @Test
+  public void testRequestsSkipAFailingPrimary() throws Exception {
+    // The server only listens on 127.0.0.1, so the primary, 127.0.0.2, refuses connections
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    final Thread acceptor =
+        new Thread(
+            () -> {
+              while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                  socket.getInputStream().read(new byte[8192]);
+                  final OutputStream out = socket.getOutputStream();
+                  out.write(
+                      "HTTP/1.1 200 OK\r\nContent-Length: 1\r\nConnection: close\r\n\r\n1"
+                          .getBytes(StandardCharsets.UTF_8));
+                  out.flush();
+                } catch (IOException e) {
+                  return;
+                }
+              }
+            });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    final List<String> failedUrls = Collections.synchronizedList(new ArrayList<>());
+    final HttpService service =
+        new HttpService(
+            false,
+            (url, ip, duration, uncompressed, compressed, code, message, e) -> failedUrls.add(url),
+            "127.0.0.1",
+            null);
+    service.setHostHealth(mHealth);
+    final String primaryUrl = "http://127.0.0.2:" + server.getLocalPort() + "/track/";
+    try {
+      for (int i = 0; i < 10; i++) {
+        service.performRequest(primaryUrl, null, null, null, new byte[] {'1'}, null);
+      }
+    } finally {
+      server.close();
+    }
+    // Only the requests before the circuit opened waited for the primary to fail
+    assertEquals(3, failedUrls.size());
+    assertEquals(HostHealth.State.OPEN, mHealth.getState("127.0.0.2"));
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < 3; i++) {
+      mHealth.recordFailure(HOST, 2000);
+    }
+    assertEquals(HostHealth.State.OPEN, mHealth.getState(HOST));
+  }
+}
@@ -0,0 +1,210 @@
+package com.mixpanel.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Checks that HttpService reads responses fully, so later requests reuse the connection. */
+public class HttpConnectionReuseTest {
+
+  private ServerSocket mServer;
+  private final AtomicInteger mConnections = new AtomicInteger();
+  private final AtomicInteger mRequests = new AtomicInteger();
+  // The client side port of the socket each request arrived on
+  private final List<Integer> mClientPorts = new CopyOnWriteArrayList<>();
+  private volatile int mResponseCode = 200;
+  private int mSavedLogLevel;
+
+  @Before
+  public void setUp() throws IOException {
+    mSavedLogLevel = MPLog.getLevel();
+    MPLog.setLevel(MPLog.NONE);
+    mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final Thread acceptor =
+        new Thread(
+            () -> {
+              while (!mServer.isClosed()) {
+                try {
+                  final Socket socket = mServer.accept();
+                  mConnections.incrementAndGet();
+                  new Thread(() -> serve(socket)).start();
+                } catch (IOException e) {
+                  return;
+                }
+              }
+            });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mServer.close();
+    MPLog.setLevel(mSavedLogLevel);
+  }
+
+  // Answers keep-alive requests on one socket until the client closes it
+  private void serve(Socket socket) {
+    try {
+      final BufferedReader reader =
+          new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      final OutputStream out = socket.getOutputStream();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int contentLength = 0;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+          if (line.toLowerCase().startsWith("content-length:")) {
+            contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+          }
+        }
+        for (int i = 0; i < contentLength; i++) {
+          reader.read();
+        }
+        mRequests.incrementAndGet();
+        mClientPorts.add(socket.getPort());
+        final String status = mResponseCode == 200 ? "200 OK" : mResponseCode + " Error";
+        // Error bodies are bigger than any read-ahead, so only reading them fully frees the socket
+        final String body = mResponseCode == 200 ? "ok" : new String(new char[16 * 1024]).replace('\0', 'e');
+        out.write(
+            ("HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                    + body.length() + "\r\n\r\n" + body)
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void assertOneSocket(int requests) {
+    assertEquals(requests, mClientPorts.size());
+    assertEquals(1, new HashSet<>(mClientPorts).size());
+    assertEquals(1, mConnections.get());
+  }
+
+  private String endpoint() {
+    return "http://127.0.0.1:" + mServer.getLocalPort() + "/track/";
+  }
+
+  @Test
+  public void testSuccessfulRequestsShareOneConnection() throws Exception {
+    final HttpService service = new HttpService();
+    for (int i = 0; i < 20; i++) {
+      final byte[] body = ("[{\"batch\":" + i + "}]").getBytes(StandardCharsets.UTF_8);
+      final RemoteService.RequestResult result =
+          service.performRequest(endpoint(), null, null, null, body, null);
+      assertEquals("ok", new String(result.getResponse(), StandardCharsets.UTF_8));
+    }
+    assertOneSocket(20);
+  }
+
+  @Test
+  public void testErrorResponsesDoNotCloseTheConnection() throws Exception {
+    final HttpService service = new HttpService();
+    mResponseCode = 503;
+    try {
+      service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+      fail("Expected the server error to be reported");
+    } catch (IOException e) {
+      // expected, after retrying
+    }
+    mResponseCode = 400;
+    try {
+      service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+      fail("Expected a client error");
+    } catch (RemoteService.ClientErrorException e) {
+      // expected
+    }
+    mResponseCode = 200;
+    service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+    assertOneSocket(mRequests.get());
+  }
+
+  @Test
+  public void testEveryErrorStatusLeavesTheSocketReusable() throws Exception {
+    final HttpService service = new HttpService();
+    service.setMaxAttempts(1);
+    for (int code : Arrays.asList(400, 404, 413, 429, 500, 503)) {
+      mResponseCode = code;
+      try {
+        service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+        fail("Expected an error for " + code);
+      } catch (IOException e) {
+        // expected
+      }
+      mResponseCode = 200;
+      service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+    }
+    assertOneSocket(12);
+  }
+
+  @Test
+  public void testAlternatingSocketFactoriesKeepTheirWrappers() throws Exception {
+    final SSLSocketFactory first = newSocketFactory();
+    final SSLSocketFactory second = newSocketFactory();
+    final CountingSSLSocketFactory firstWrapper = HttpService.getCountingSocketFactory(first);
+    final CountingSSLSocketFactory secondWrapper = HttpService.getCountingSocketFactory(second);
+    assertNotSame(firstWrapper, secondWrapper);
+
+    for (int i = 0; i < 3; i++) {
+      final CountingSSLSocketFactory a = HttpService.getCountingSocketFactory(first);
+      final CountingSSLSocketFactory b = HttpService.getCountingSocketFactory(second);
+      assertSame(firstWrapper, a);
+      assertSame(secondWrapper, b);
+      a.createSocket().close();
+      b.createSocket().close();
+    }
+
+    // Neither wrapper was replaced, so neither lost its counts
+    assertEquals(3, firstWrapper.getConnectionCount());
+    assertEquals(3, secondWrapper.getConnectionCount());
+    assertEquals(0, firstWrapper.getHandshakeCount());
+    assertEquals(0, secondWrapper.getHandshakeCount());
+  }
+
+  private static SSLSocketFactory newSocketFactory() throws Exception {
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, null, null);
+    return context.getSocketFactory();
+  }
+
+  @Test
+  public void testSingleAttemptFailsWithoutRetrying() throws Exception {
+    final HttpService service = new HttpService();
+    service.setMaxAttempts(1);
+    mResponseCode = 503;
+    try {
+      service.performRequest(endpoint(), null, null, null, new byte[] {'[', ']'}, null);
+      fail("Expected the server error to be reported");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(1, mRequests.get());
+  }
+}
@@ -37,6 +37,13 @@ object MixpanelEventBridge {
      */
     fun events(): SharedFlow<MixpanelEvent> = eventFlow.asSharedFlow()
 
+    /**
+     * Returns true if any collector is listening, so callers can skip preparing an event that
+     * nobody would receive.
+     */
+    @JvmStatic
+    fun hasListeners(): Boolean = eventFlow.subscriptionCount.value > 0
+
     /**
      * Emits an event to all collectors.
      *